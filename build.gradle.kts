@@ -1,7 +1,9 @@
 plugins {
     id("java")
+    id("java-test-fixtures")
     id("io.papermc.paperweight.userdev") version "2.0.0-beta.17"
     id("maven-publish")
+    id("me.champeau.jmh") version "0.7.3"
 }
 
 group = "net.chaossquad"
@@ -36,6 +38,31 @@ java {
     withJavadocJar()
 }
 
+// Benchmarks need the server classes at runtime, which are only compileOnly for the library
+configurations.named("jmhImplementation") {
+    extendsFrom(configurations.compileOnly.get())
+}
+
+// Test fixtures (the packet replay harness) are compiled against the same server classes as the library
+configurations.named("testFixturesCompileOnly") {
+    extendsFrom(configurations.compileOnly.get())
+}
+
+dependencies {
+    "jmhImplementation"(testFixtures(project))
+}
+
+// gradle jmh
+// Results are written per version, so runs of different library versions can be compared
+jmh {
+    jmhVersion.set("1.37")
+    fork.set(1)
+    warmupIterations.set(3)
+    iterations.set(5)
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("reports/jmh/results-${project.version}.json"))
+}
+
 // gradle publish{PUBLICATION_NAME}To{REPOSITORY_NAME}Repository
 // in this case: publishMavenToChaosSquadRepository
 publishing {
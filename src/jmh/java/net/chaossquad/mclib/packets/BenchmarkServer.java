@@ -0,0 +1,104 @@
+package net.chaossquad.mclib.packets;
+
+import net.minecraft.SharedConstants;
+import net.minecraft.server.Bootstrap;
+import net.minecraft.world.entity.Display;
+import net.minecraft.world.entity.EntityType;
+import org.bukkit.Bukkit;
+import org.bukkit.Server;
+import org.bukkit.plugin.Plugin;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.logging.Logger;
+
+/**
+ * Stand-in for the bukkit server, so the managers of the library can be created in a benchmark fork.<br/>
+ * The server and everything it returns are proxies that do nothing, so scheduled tasks never run and registered listeners are never called.
+ * Entities created by {@link #createBlockDisplay()} have no level, so they can be added to a manager but cannot be shown to players.
+ */
+public final class BenchmarkServer {
+    private static Plugin plugin;
+
+    private BenchmarkServer() {}
+
+    /**
+     * Bootstraps the vanilla registries, installs the stub server and returns the stub plugin.
+     * @return plugin
+     */
+    public static synchronized Plugin getPlugin() {
+        if (plugin != null) return plugin;
+
+        SharedConstants.tryDetectVersion();
+        Bootstrap.bootStrap();
+
+        Server server = stub(Server.class);
+
+        // Bukkit.setServer logs the build info, which is only available in a server jar
+        try {
+            Field field = Bukkit.class.getDeclaredField("server");
+            field.setAccessible(true);
+            if (field.get(null) == null) field.set(null, server);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Failed to install the benchmark server", e);
+        }
+
+        Logger logger = Logger.getLogger("Benchmark");
+
+        plugin = (Plugin) Proxy.newProxyInstance(Plugin.class.getClassLoader(), new Class<?>[]{Plugin.class}, (proxy, method, args) -> switch (method.getName()) {
+            case "getServer" -> Bukkit.getServer();
+            case "getName" -> "Benchmark";
+            case "getLogger" -> logger;
+            case "isEnabled" -> true;
+            default -> invokeDefault(proxy, method, args);
+        });
+
+        return plugin;
+    }
+
+    /**
+     * Creates a block display without a level.
+     * @return block display
+     */
+    public static Display.BlockDisplay createBlockDisplay() {
+        return new Display.BlockDisplay(EntityType.BLOCK_DISPLAY, null);
+    }
+
+    // STUBS
+
+    /**
+     * Creates a proxy that returns stubs for interfaces and default values for everything else.
+     * @param type interface
+     * @return stub
+     * @param <T> type
+     */
+    private static <T> T stub(Class<T> type) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, BenchmarkServer::invokeDefault));
+    }
+
+    private static Object invokeDefault(Object proxy, Method method, Object[] args) {
+
+        switch (method.getName()) {
+            case "equals":
+                return args != null && args.length == 1 && proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return "Stub{" + proxy.getClass().getInterfaces()[0].getSimpleName() + "}";
+        }
+
+        Class<?> type = method.getReturnType();
+        if (type.isInterface()) return stub(type);
+        if (!type.isPrimitive() || type == void.class) return null;
+        if (type == boolean.class) return false;
+        if (type == char.class) return (char) 0;
+        if (type == byte.class) return (byte) 0;
+        if (type == short.class) return (short) 0;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        if (type == float.class) return 0F;
+        return 0D;
+    }
+
+}
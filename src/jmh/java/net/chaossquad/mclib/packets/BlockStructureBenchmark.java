@@ -0,0 +1,76 @@
+package net.chaossquad.mclib.packets;
+
+import net.chaossquad.mclib.packets.packetentity.PacketEntity;
+import net.chaossquad.mclib.packets.packetentity.PacketEntityData;
+import net.chaossquad.mclib.packets.packetentity.PacketEntityManager;
+import net.minecraft.world.level.block.Blocks;
+import net.minecraft.world.level.block.state.BlockState;
+import org.bukkit.util.Vector;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the computations of spawning a block structure, without sending anything.<br/>
+ * {@link #boxes()} splits a cube of N³ blocks into the boxes {@link PacketUtils#spawnBlockStructure(PacketEntityManager, net.chaossquad.mclib.blocks.BlockStructure, org.bukkit.Location, List, boolean)} spawns,
+ * with and without greedy meshing.
+ * {@link #cells(Blackhole)} resolves the covered cells of every spawned block display with {@link PacketUtils#getBlockStructureCells(PacketEntity)}.
+ * The cube consists of stone and dirt layers with 10% random air, so meshing produces boxes of different sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BlockStructureBenchmark {
+    @Param({"8", "32"})
+    public int size;
+    @Param({"false", "true"})
+    public boolean mesh;
+    private BlockState[][][] states;
+    private List<PacketEntity<?>> entities;
+
+    @Setup
+    public void setup() {
+        PacketEntityManager manager = new PacketEntityManager(BenchmarkServer.getPlugin());
+        this.states = new BlockState[this.size][this.size][this.size];
+        Random random = new Random(0);
+
+        for (int x = 0; x < this.size; x++) {
+            for (int y = 0; y < this.size; y++) {
+                for (int z = 0; z < this.size; z++) {
+                    if (random.nextInt(10) == 0) continue;
+                    this.states[x][y][z] = (y / 4) % 2 == 0 ? Blocks.STONE.defaultBlockState() : Blocks.DIRT.defaultBlockState();
+                }
+            }
+        }
+
+        this.entities = new ArrayList<>();
+
+        // same data as PacketUtils.spawnStructureBox, the block displays have no level
+        for (PacketUtils.StructureBox box : PacketUtils.getStructureBoxes(this.states, this.mesh)) {
+            PacketEntity<?> entity = manager.addEntity(BenchmarkServer.createBlockDisplay());
+            entity.addData(PacketUtils.DATA_VALUE_BLOCKSTRUCTURE_RELATIVE_POSITION, new PacketEntityData<>(new Vector(box.x(), box.y(), box.z())));
+            if (this.mesh) entity.addData(PacketUtils.DATA_VALUE_BLOCKSTRUCTURE_SIZE, new PacketEntityData<>(new Vector(box.sizeX(), box.sizeY(), box.sizeZ())));
+            this.entities.add(entity);
+        }
+
+    }
+
+    @Benchmark
+    public List<PacketUtils.StructureBox> boxes() {
+        return PacketUtils.getStructureBoxes(this.states, this.mesh);
+    }
+
+    @Benchmark
+    public void cells(Blackhole blackhole) {
+
+        for (PacketEntity<?> entity : this.entities) {
+            blackhole.consume(PacketUtils.getBlockStructureCells(entity));
+        }
+
+    }
+
+}
@@ -0,0 +1,115 @@
+package net.chaossquad.mclib.packets.packetentity;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import net.chaossquad.mclib.packets.BenchmarkServer;
+import net.chaossquad.mclib.packets.packetevents.PacketReplayHarness;
+import net.minecraft.network.protocol.Packet;
+import net.minecraft.network.protocol.game.ClientGamePacketListener;
+import net.minecraft.network.protocol.game.ClientboundSetEntityDataPacket;
+import net.minecraft.world.entity.Display;
+import net.minecraft.world.level.block.Blocks;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building the entity metadata packet of a block display for N viewers and writing it through the {@link PacketEntityManager}.<br/>
+ * {@link #buildPerViewer()} builds the value list and the packet for every viewer, like {@link PacketEntity#sendEntityData(Player)} does when called per player.
+ * {@link #buildOnce()} builds them once and passes them to {@link PacketEntityManager#broadcastPacket(Collection, Packet)}, like {@link PacketEntity#sendEntityData(boolean)}.<br/>
+ * These are packet construction benchmarks, they do not call {@link PacketEntity#sendEntityData(boolean)}:
+ * viewers of a packet entity have to be in its world, which needs a loaded level.
+ * The manager writes the packets into one embedded channel per simulated player instead of the player connections.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EntityDataPacketBenchmark {
+    @Param({"1", "16", "150"})
+    public int viewers;
+    private BenchmarkEntityManager manager;
+    private Display.BlockDisplay display;
+    private List<Player> players;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        this.manager = new BenchmarkEntityManager(BenchmarkServer.getPlugin());
+        this.players = new ArrayList<>();
+
+        for (int i = 0; i < this.viewers; i++) {
+            Player player = PacketReplayHarness.createPlayer("Viewer" + i, UUID.randomUUID());
+            this.manager.addChannel(player, blackhole);
+            this.players.add(player);
+        }
+
+        this.display = BenchmarkServer.createBlockDisplay();
+        this.display.setBlockState(Blocks.STONE.defaultBlockState());
+        this.display.setGlowingTag(true);
+        this.manager.addEntity(this.display);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.manager.close();
+    }
+
+    @Benchmark
+    public void buildPerViewer() {
+
+        for (Player player : this.players) {
+            this.manager.sendPacket(player, new ClientboundSetEntityDataPacket(this.display.getId(), this.display.getEntityData().getNonDefaultValues()));
+        }
+
+    }
+
+    @Benchmark
+    public void buildOnce() {
+        this.manager.broadcastPacket(this.players, new ClientboundSetEntityDataPacket(this.display.getId(), this.display.getEntityData().getNonDefaultValues()));
+    }
+
+    // MANAGER
+
+    /**
+     * Manager that writes packets into embedded channels instead of the connections of the players.
+     */
+    private static final class BenchmarkEntityManager extends PacketEntityManager {
+        private final Map<Player, EmbeddedChannel> channels;
+
+        private BenchmarkEntityManager(Plugin plugin) {
+            super(plugin);
+            this.channels = new HashMap<>();
+        }
+
+        private void addChannel(Player player, Blackhole blackhole) {
+            EmbeddedChannel channel = new EmbeddedChannel();
+            channel.pipeline().addLast("prepender", new ChannelOutboundHandlerAdapter() {
+
+                @Override
+                public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+                    blackhole.consume(msg);
+                }
+
+            });
+            this.channels.put(player, channel);
+        }
+
+        @Override
+        public void sendPacket(Player player, Packet<? super ClientGamePacketListener> packet) {
+            EmbeddedChannel channel = this.channels.get(player);
+            channel.write(packet, channel.voidPromise());
+        }
+
+        private void close() {
+            this.channels.values().forEach(EmbeddedChannel::finishAndReleaseAll);
+            this.channels.clear();
+        }
+
+    }
+
+}
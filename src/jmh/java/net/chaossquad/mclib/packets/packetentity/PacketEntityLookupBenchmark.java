@@ -0,0 +1,69 @@
+package net.chaossquad.mclib.packets.packetentity;
+
+import net.chaossquad.mclib.packets.BenchmarkServer;
+import net.minecraft.world.entity.Entity;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the lookups of the {@link PacketEntityManager} by entity id and by nms entity.
+ * The ids and entities are looked up in a fixed random order, so the lookups don't hit the same bucket every time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PacketEntityLookupBenchmark {
+    @Param({"10000"})
+    public int entities;
+    private PacketEntityManager manager;
+    private int[] ids;
+    private Entity[] handles;
+    private int index;
+
+    @Setup
+    public void setup() {
+        this.manager = new PacketEntityManager(BenchmarkServer.getPlugin());
+        this.ids = new int[this.entities];
+        this.handles = new Entity[this.entities];
+
+        for (int i = 0; i < this.entities; i++) {
+            PacketEntity<?> entity = this.manager.addEntity(BenchmarkServer.createBlockDisplay());
+            this.ids[i] = entity.getEntity().getId();
+            this.handles[i] = entity.getEntity();
+        }
+
+        Random random = new Random(0);
+
+        for (int i = this.entities - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int id = this.ids[i];
+            this.ids[i] = this.ids[j];
+            this.ids[j] = id;
+            Entity handle = this.handles[i];
+            this.handles[i] = this.handles[j];
+            this.handles[j] = handle;
+        }
+
+        this.index = 0;
+    }
+
+    @Benchmark
+    public PacketEntity<?> byId() {
+        int index = this.index++ % this.entities;
+        return this.manager.getPacketEntityFromId(this.ids[index]);
+    }
+
+    @Benchmark
+    public PacketEntity<?> byEntity() {
+        int index = this.index++ % this.entities;
+        return this.manager.getPacketEntityFromEntity(this.handles[index]);
+    }
+
+    @Benchmark
+    public PacketEntity<?> miss() {
+        return this.manager.getPacketEntityFromId(-1);
+    }
+
+}
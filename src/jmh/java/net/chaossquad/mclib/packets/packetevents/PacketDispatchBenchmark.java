@@ -0,0 +1,89 @@
+package net.chaossquad.mclib.packets.packetevents;
+
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import net.minecraft.network.protocol.Packet;
+import net.minecraft.network.protocol.common.ClientboundKeepAlivePacket;
+import net.minecraft.network.protocol.common.ServerboundKeepAlivePacket;
+import org.bukkit.event.EventPriority;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Measures the cost of one packet passing the {@link PacketChannelHandler} in each direction.
+ * With 0 listeners, the packet passes without an event being created.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PacketDispatchBenchmark {
+    @Param({"0", "1", "8"})
+    public int listeners;
+    @Param({"false", "true"})
+    public boolean metrics;
+    private EmbeddedChannel channel;
+    private ChannelHandlerContext packetHandlerContext;
+    private Packet<?> clientbound;
+    private Packet<?> serverbound;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        PacketPipeline pipeline = new PacketPipeline();
+        pipeline.getMetrics().setEnabled(this.metrics);
+
+        PacketListenerRegistry registry = new PacketListenerRegistry("benchmark", Logger.getLogger("benchmark"));
+
+        for (int i = 0; i < this.listeners; i++) {
+            registry.register(PacketDirection.CLIENTBOUND, ClientboundKeepAlivePacket.class, (event, packet) -> blackhole.consume(packet.getId()));
+            registry.register(PacketDirection.SERVERBOUND, ServerboundKeepAlivePacket.class, (event, packet) -> blackhole.consume(packet.getId()));
+        }
+
+        pipeline.attach(registry, EventPriority.NORMAL);
+
+        this.channel = new EmbeddedChannel();
+        this.channel.pipeline().addLast("prepender", new ChannelOutboundHandlerAdapter() {
+
+            @Override
+            public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+                blackhole.consume(msg);
+            }
+
+        });
+        this.channel.pipeline().addLast(PacketPipeline.HANDLER_NAME, new PacketChannelHandler(pipeline, null, PacketReplayHarness.createPlayer("Benchmark", UUID.randomUUID())));
+        this.channel.pipeline().addLast("packet_handler", new ChannelInboundHandlerAdapter() {
+
+            @Override
+            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                blackhole.consume(msg);
+            }
+
+        });
+
+        this.packetHandlerContext = this.channel.pipeline().context("packet_handler");
+        this.clientbound = new ClientboundKeepAlivePacket(1);
+        this.serverbound = new ServerboundKeepAlivePacket(1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        this.channel.finishAndReleaseAll();
+    }
+
+    @Benchmark
+    public void clientbound() {
+        this.packetHandlerContext.write(this.clientbound, this.channel.voidPromise());
+    }
+
+    @Benchmark
+    public void serverbound() {
+        this.channel.pipeline().fireChannelRead(this.serverbound);
+    }
+
+}
@@ -0,0 +1,37 @@
+package net.chaossquad.mclib.packets.packetevents;
+
+import net.minecraft.network.protocol.common.ClientboundKeepAlivePacket;
+import net.minecraft.network.protocol.common.ClientboundPingPacket;
+import net.minecraft.network.protocol.game.ClientboundSetEntityDataPacket;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Measures the listener lookup of the {@link PacketListenerRegistry} for packet classes with and without listeners.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PacketListenerRegistryBenchmark {
+    private PacketListenerRegistry registry;
+
+    @Setup
+    public void setup() {
+        this.registry = new PacketListenerRegistry("benchmark", Logger.getLogger("benchmark"));
+        this.registry.register(PacketDirection.CLIENTBOUND, ClientboundKeepAlivePacket.class, (event, packet) -> {});
+        this.registry.register(PacketDirection.CLIENTBOUND, ClientboundPingPacket.class, (event, packet) -> {});
+    }
+
+    @Benchmark
+    public RegisteredPacketListener<?>[] hit() {
+        return this.registry.getListeners(PacketDirection.CLIENTBOUND, ClientboundKeepAlivePacket.class);
+    }
+
+    @Benchmark
+    public RegisteredPacketListener<?>[] miss() {
+        return this.registry.getListeners(PacketDirection.CLIENTBOUND, ClientboundSetEntityDataPacket.class);
+    }
+
+}
@@ -0,0 +1,258 @@
+package net.chaossquad.mclib.packets;
+
+import net.chaossquad.mclib.packets.packetentity.PacketEntity;
+import net.chaossquad.mclib.packets.packetentity.PacketEntityManager;
+import net.minecraft.core.SectionPos;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.entity.Display;
+import net.minecraft.world.phys.Vec3;
+import org.bukkit.Location;
+import org.bukkit.craftbukkit.CraftWorld;
+import org.bukkit.scheduler.BukkitRunnable;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+/**
+ * Spawns a block structure over multiple ticks.<br/>
+ * Created by {@link PacketUtils#spawnBlockStructureIncrementally(PacketEntityManager, net.chaossquad.mclib.blocks.BlockStructure, Location, List, boolean, int, java.time.Duration, Consumer)}.
+ * Every tick, the task spawns block displays until the entity or time budget is used up.
+ * The structure is spawned section by section, the section closest to a player in the world is spawned first.<br/>
+ * The task runs on the main thread, its future is completed on the main thread as well.
+ */
+public final class BlockStructureSpawnTask {
+    private final PacketEntityManager manager;
+    private final Location location;
+    private final List<String> scoreboardTags;
+    private final boolean mesh;
+    private final int entitiesPerTick;
+    private final long nanosPerTick;
+    private final Consumer<PacketEntity<Display.BlockDisplay>> spawnCallback;
+    private final List<Section> sections;
+    private final List<PacketEntity<Display.BlockDisplay>> entities;
+    private final CompletableFuture<List<PacketEntity<Display.BlockDisplay>>> future;
+    private final int total;
+    private int processed;
+    private BukkitRunnable runnable;
+
+    BlockStructureSpawnTask(PacketEntityManager manager, Location location, List<PacketUtils.StructureBox> boxes, List<String> scoreboardTags, boolean mesh, int entitiesPerTick, long nanosPerTick, Consumer<PacketEntity<Display.BlockDisplay>> spawnCallback) {
+        this.manager = manager;
+        this.location = location;
+        this.scoreboardTags = scoreboardTags;
+        this.mesh = mesh;
+        this.entitiesPerTick = entitiesPerTick;
+        this.nanosPerTick = nanosPerTick;
+        this.spawnCallback = spawnCallback;
+        this.sections = groupBySection(location, boxes);
+        this.entities = new ArrayList<>();
+        this.future = new CompletableFuture<>();
+        this.total = boxes.size();
+        this.processed = 0;
+        this.runnable = null;
+    }
+
+    /**
+     * Groups the boxes by the world section of their first cell.
+     * @param location location of the structure
+     * @param boxes boxes
+     * @return sections
+     */
+    private static List<Section> groupBySection(Location location, List<PacketUtils.StructureBox> boxes) {
+        Map<Long, Section> sections = new LinkedHashMap<>();
+
+        for (PacketUtils.StructureBox box : boxes) {
+            int x = SectionPos.blockToSectionCoord(location.getBlockX() + box.x());
+            int y = SectionPos.blockToSectionCoord(location.getBlockY() + box.y());
+            int z = SectionPos.blockToSectionCoord(location.getBlockZ() + box.z());
+            sections.computeIfAbsent(SectionPos.asLong(x, y, z), section -> new Section(new Vec3(SectionPos.sectionToBlockCoord(x, 8), SectionPos.sectionToBlockCoord(y, 8), SectionPos.sectionToBlockCoord(z, 8)))).boxes.add(box);
+        }
+
+        return new ArrayList<>(sections.values());
+    }
+
+    // TASK
+
+    /**
+     * Starts spawning with the next tick.
+     */
+    void start() {
+
+        if (this.sections.isEmpty()) {
+            this.future.complete(List.of());
+            return;
+        }
+
+        this.runnable = new BukkitRunnable() {
+            @Override
+            public void run() {
+                BlockStructureSpawnTask.this.tick();
+            }
+        };
+        this.runnable.runTaskTimer(this.manager.getPlugin(), 1, 1);
+    }
+
+    /**
+     * Spawns block displays until the budget of the tick is used up.
+     */
+    private void tick() {
+        if (this.future.isDone()) return;
+
+        ServerLevel level = ((CraftWorld) this.location.getWorld()).getHandle();
+        List<Vec3> players = new ArrayList<>();
+        for (ServerPlayer player : level.players()) {
+            players.add(player.position());
+        }
+
+        long start = System.nanoTime();
+        int spawned = 0;
+        Section section = null;
+
+        while (spawned < this.entitiesPerTick && System.nanoTime() - start < this.nanosPerTick) {
+            if (section == null || section.isEmpty()) section = this.nextSection(players);
+            if (section == null) break;
+
+            PacketEntity<Display.BlockDisplay> entity = PacketUtils.spawnStructureBox(this.manager, this.location, section.boxes.get(section.index++), this.scoreboardTags, this.mesh);
+            this.processed++;
+            spawned++;
+            if (entity == null) continue;
+
+            this.entities.add(entity);
+            if (this.spawnCallback != null) this.spawnCallback.accept(entity);
+        }
+
+        if (section != null && section.isEmpty()) this.sections.remove(section);
+
+        if (this.sections.isEmpty()) {
+            this.runnable.cancel();
+            this.future.complete(List.copyOf(this.entities));
+        }
+
+    }
+
+    /**
+     * Returns the section with boxes left that is closest to a player.
+     * Finished sections are removed.
+     * @param players positions of the players in the world
+     * @return section, null if all sections are done
+     */
+    private Section nextSection(List<Vec3> players) {
+        this.sections.removeIf(Section::isEmpty);
+        if (this.sections.isEmpty()) return null;
+        if (players.isEmpty()) return this.sections.getFirst();
+
+        Section closest = null;
+        double closestDistance = Double.MAX_VALUE;
+
+        for (Section section : this.sections) {
+
+            for (Vec3 player : players) {
+                double distance = section.center.distanceToSqr(player);
+
+                if (distance < closestDistance) {
+                    closest = section;
+                    closestDistance = distance;
+                }
+
+            }
+
+        }
+
+        return closest;
+    }
+
+    /**
+     * Stops spawning.
+     * The future is cancelled.
+     * @param removeSpawned remove the block displays that have already been spawned
+     * @return false if the task was already done or cancelled
+     */
+    public boolean cancel(boolean removeSpawned) {
+        if (this.future.isDone()) return false;
+
+        if (this.runnable != null) this.runnable.cancel();
+        this.future.cancel(false);
+        if (removeSpawned) this.manager.removeEntities(List.copyOf(this.entities));
+        return true;
+    }
+
+    // GETTER
+
+    /**
+     * Returns the progress.
+     * @return progress from 0 to 1
+     */
+    public double getProgress() {
+        return this.total > 0 ? (double) this.processed / this.total : 1;
+    }
+
+    /**
+     * Returns the number of block displays that have been spawned so far.
+     * @return spawned entities
+     */
+    public int getSpawnedCount() {
+        return this.entities.size();
+    }
+
+    /**
+     * Returns the number of block displays the structure is spawned as.
+     * @return total entities
+     */
+    public int getTotalCount() {
+        return this.total;
+    }
+
+    /**
+     * Returns the block displays that have been spawned so far.
+     * @return list of packet entities
+     */
+    public List<PacketEntity<Display.BlockDisplay>> getEntities() {
+        return List.copyOf(this.entities);
+    }
+
+    /**
+     * Returns true if the structure has been spawned completely.
+     * @return done
+     */
+    public boolean isDone() {
+        return this.future.isDone() && !this.future.isCancelled();
+    }
+
+    /**
+     * Returns true if the task has been cancelled.
+     * @return cancelled
+     */
+    public boolean isCancelled() {
+        return this.future.isCancelled();
+    }
+
+    /**
+     * Returns the future that is completed with all spawned block displays when the structure has been spawned completely.
+     * @return future
+     */
+    public CompletableFuture<List<PacketEntity<Display.BlockDisplay>>> getFuture() {
+        return this.future;
+    }
+
+    // SECTION
+
+    /**
+     * Boxes of the structure in one world section.
+     */
+    private static final class Section {
+        private final Vec3 center;
+        private final List<PacketUtils.StructureBox> boxes = new ArrayList<>();
+        private int index;
+
+        private Section(Vec3 center) {
+            this.center = center;
+        }
+
+        private boolean isEmpty() {
+            return this.index >= this.boxes.size();
+        }
+
+    }
+
+}
@@ -0,0 +1,121 @@
+package net.chaossquad.mclib.packets;
+
+import net.minecraft.network.Connection;
+import org.bukkit.craftbukkit.entity.CraftPlayer;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.plugin.Plugin;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the {@link PlayerConnection}s of all online players.<br/>
+ * The entries are created when a player joins and removed when the player quits, so lookups don't need to resolve the connection again.
+ * Players that are not in the registry yet (e.g. because they joined before the registry has been registered) are resolved and cached on the first lookup.
+ * The lifecycle listener is registered by {@link #register(Plugin)}, which is done by the managers of this library.
+ */
+public final class ConnectionRegistry implements Listener {
+    private static final ConnectionRegistry INSTANCE = new ConnectionRegistry();
+    private final Map<UUID, PlayerConnection> connections;
+    private Plugin plugin;
+
+    private ConnectionRegistry() {
+        this.connections = new ConcurrentHashMap<>();
+        this.plugin = null;
+    }
+
+    // LIFECYCLE
+
+    /**
+     * Registers the lifecycle listeners for the specified plugin.
+     * Does nothing if the listeners are already registered for another enabled plugin.
+     * @param plugin plugin
+     */
+    public synchronized void register(Plugin plugin) {
+        if (this.plugin != null && this.plugin.isEnabled()) return;
+        this.plugin = plugin;
+        this.connections.clear();
+        plugin.getServer().getPluginManager().registerEvents(this, plugin);
+    }
+
+    /**
+     * Adds the connection of the player to the registry.
+     * @param event event
+     */
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onPlayerJoin(PlayerJoinEvent event) {
+        this.resolve(event.getPlayer());
+    }
+
+    /**
+     * Removes the connection of the player from the registry.
+     * @param event event
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuit(PlayerQuitEvent event) {
+        this.connections.remove(event.getPlayer().getUniqueId());
+    }
+
+    // LOOKUP
+
+    /**
+     * Returns the connection of the specified player.
+     * @param player player
+     * @return connection, null if the player has no connection
+     */
+    public PlayerConnection get(Player player) {
+        if (player == null) return null;
+
+        PlayerConnection connection = this.connections.get(player.getUniqueId());
+        if (connection != null && connection.isOpen()) return connection;
+
+        return this.resolve(player);
+    }
+
+    /**
+     * Returns the connection of the player with the specified uuid.
+     * Only returns connections that are already in the registry.
+     * @param uuid uuid
+     * @return connection, null if not in the registry
+     */
+    public PlayerConnection get(UUID uuid) {
+        return this.connections.get(uuid);
+    }
+
+    /**
+     * Resolves the connection of the player and stores it in the registry.
+     * @param player player
+     * @return connection, null if the player has no connection
+     */
+    private PlayerConnection resolve(Player player) {
+        if (!(player instanceof CraftPlayer craftPlayer)) return null;
+
+        Connection connection = PacketUtils.getConnection(craftPlayer.getHandle());
+
+        if (connection == null || !connection.channel.isOpen()) {
+            this.connections.remove(player.getUniqueId());
+            return null;
+        }
+
+        PlayerConnection playerConnection = new PlayerConnection(player.getUniqueId(), connection);
+        this.connections.put(player.getUniqueId(), playerConnection);
+        return playerConnection;
+    }
+
+    // INSTANCE
+
+    /**
+     * Returns the connection registry.
+     * @return connection registry
+     */
+    public static ConnectionRegistry getInstance() {
+        return INSTANCE;
+    }
+
+}
@@ -0,0 +1,151 @@
+package net.chaossquad.mclib.packets;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import net.minecraft.core.RegistryAccess;
+import net.minecraft.network.Connection;
+import net.minecraft.network.ProtocolInfo;
+import net.minecraft.network.RegistryFriendlyByteBuf;
+import net.minecraft.network.protocol.BundlePacket;
+import net.minecraft.network.protocol.Packet;
+import net.minecraft.network.protocol.game.ClientGamePacketListener;
+import net.minecraft.network.protocol.game.GameProtocols;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.network.ServerGamePacketListenerImpl;
+import org.bukkit.entity.Player;
+
+/**
+ * A clientbound play packet that has been serialized once and can be written to many players.<br/>
+ * The frame (packet id and payload) is written from the packet handler of the connection and passed through the packet encoder unchanged,
+ * so the packet is not serialized again for every player. Compression, encryption and the length prefix are still applied per connection.<br/>
+ * The frame is written in order with the other packets of the connection, but it is not flushed:
+ * it is sent with the next flush of the connection (at the latest at the end of the tick).<br/>
+ * Pre-encoded frames bypass the packet listeners of the pipeline (raw frame listeners, metrics and captures still see them)
+ * and are not counted in the sent packet statistics of the connection.
+ * Components are serialized without the locale of the player.
+ * Players that are not in the play phase (e.g. during reconfiguration) or not connected yet receive the packet object through the connection instead.<br/>
+ * The buffer is reference counted, {@link #release()} has to be called when the packet has been sent to all players.
+ */
+public final class EncodedPacket {
+    private static final String PACKET_HANDLER_NAME = "packet_handler";
+    private static RegistryAccess codecRegistryAccess;
+    private static ProtocolInfo<ClientGamePacketListener> codec;
+    private final Packet<? super ClientGamePacketListener> packet;
+    private final ByteBuf buffer;
+
+    private EncodedPacket(Packet<? super ClientGamePacketListener> packet, ByteBuf buffer) {
+        this.packet = packet;
+        this.buffer = buffer;
+    }
+
+    // ENCODE
+
+    /**
+     * Serializes a clientbound play packet.
+     * @param packet packet (bundles are not supported)
+     * @return encoded packet
+     */
+    public static EncodedPacket encode(Packet<? super ClientGamePacketListener> packet) {
+        if (packet == null) throw new IllegalArgumentException("Packet cannot be null");
+        if (packet instanceof BundlePacket<?>) throw new IllegalArgumentException("Bundle packets cannot be pre-encoded");
+
+        ByteBuf buffer = Unpooled.buffer();
+
+        try {
+            getCodec().codec().encode(buffer, packet);
+        } catch (RuntimeException e) {
+            buffer.release();
+            throw e;
+        }
+
+        return new EncodedPacket(packet, buffer);
+    }
+
+    /**
+     * Returns the play protocol codec bound to the registries of the server.
+     * @return codec
+     */
+    private static synchronized ProtocolInfo<ClientGamePacketListener> getCodec() {
+        RegistryAccess registryAccess = MinecraftServer.getServer().registryAccess();
+
+        if (codec == null || codecRegistryAccess != registryAccess) {
+            codec = GameProtocols.CLIENTBOUND_TEMPLATE.bind(RegistryFriendlyByteBuf.decorator(registryAccess));
+            codecRegistryAccess = registryAccess;
+        }
+
+        return codec;
+    }
+
+    // SEND
+
+    /**
+     * Writes the encoded packet to the player.
+     * @param player player
+     */
+    public void send(Player player) {
+        if (this.buffer.refCnt() <= 0) throw new IllegalStateException("Encoded packet has already been released");
+
+        PlayerConnection playerConnection = ConnectionRegistry.getInstance().get(player);
+        if (playerConnection == null) return;
+
+        Connection connection = playerConnection.getConnection();
+        Channel channel = playerConnection.getChannel();
+        ChannelHandlerContext packetHandler = channel.pipeline().context(PACKET_HANDLER_NAME);
+
+        // connections that are not connected yet queue their packets, the frame must not overtake them
+        if (packetHandler == null || !connection.isConnected() || !(connection.getPacketListener() instanceof ServerGamePacketListenerImpl)) {
+            connection.send(this.packet);
+            return;
+        }
+
+        ByteBuf frame = this.buffer.retainedDuplicate();
+
+        if (channel.eventLoop().inEventLoop()) {
+            packetHandler.write(frame);
+        } else {
+            channel.eventLoop().execute(() -> packetHandler.write(frame));
+        }
+
+    }
+
+    /**
+     * Writes the encoded packet to the players.
+     * @param players players
+     */
+    public void send(Iterable<? extends Player> players) {
+
+        for (Player player : players) {
+            this.send(player);
+        }
+
+    }
+
+    /**
+     * Releases the buffer.
+     * Frames that are still waiting to be written keep their own reference.
+     */
+    public void release() {
+        if (this.buffer.refCnt() > 0) this.buffer.release();
+    }
+
+    // GETTER
+
+    /**
+     * Returns the packet.
+     * @return packet
+     */
+    public Packet<? super ClientGamePacketListener> getPacket() {
+        return this.packet;
+    }
+
+    /**
+     * Returns the size of the encoded frame (packet id and payload).
+     * @return bytes
+     */
+    public int getSize() {
+        return this.buffer.readableBytes();
+    }
+
+}
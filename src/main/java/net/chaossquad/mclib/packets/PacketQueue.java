@@ -0,0 +1,100 @@
+package net.chaossquad.mclib.packets;
+
+import net.minecraft.network.protocol.BundlerInfo;
+import net.minecraft.network.protocol.Packet;
+import net.minecraft.network.protocol.game.ClientGamePacketListener;
+import net.minecraft.network.protocol.game.ClientboundBundlePacket;
+import org.bukkit.craftbukkit.entity.CraftPlayer;
+import org.bukkit.entity.Player;
+
+import java.util.*;
+
+/**
+ * Per-player outbound packet queue.<br/>
+ * Packets are collected until {@link #flush()} is called and then sent as one {@link ClientboundBundlePacket} per player.
+ * The client applies all packets of a bundle in the same frame, and the bundle only causes one write and one flush on the channel.
+ * Packets that are sent directly (not through the queue) are not ordered with the queued packets.
+ */
+public final class PacketQueue {
+    private final Map<UUID, Entry> queues;
+
+    /**
+     * Creates a PacketQueue.
+     */
+    public PacketQueue() {
+        this.queues = new HashMap<>();
+    }
+
+    /**
+     * Adds a packet to the queue of the player.
+     * @param player player
+     * @param packet packet
+     */
+    public synchronized void add(Player player, Packet<? super ClientGamePacketListener> packet) {
+        if (player == null || packet == null) return;
+        this.queues.computeIfAbsent(player.getUniqueId(), uuid -> new Entry(player)).packets.add(packet);
+    }
+
+    /**
+     * Sends the queued packets of all players and clears the queue.
+     * Each player receives the packets as one bundle (or multiple bundles if the bundle size limit is exceeded).
+     */
+    public void flush() {
+        List<Entry> entries;
+
+        synchronized (this) {
+            if (this.queues.isEmpty()) return;
+            entries = List.copyOf(this.queues.values());
+            this.queues.clear();
+        }
+
+        for (Entry entry : entries) {
+            send(entry.player, entry.packets);
+        }
+
+    }
+
+    /**
+     * Returns true if no packets are queued.
+     * @return empty
+     */
+    public synchronized boolean isEmpty() {
+        return this.queues.isEmpty();
+    }
+
+    /**
+     * Discards all queued packets.
+     */
+    public synchronized void clear() {
+        this.queues.clear();
+    }
+
+    /**
+     * Sends the packets as bundles to the player.
+     * @param player player
+     * @param packets packets
+     */
+    private static void send(Player player, List<Packet<? super ClientGamePacketListener>> packets) {
+        if (!player.isOnline()) return;
+
+        if (packets.size() == 1) {
+            ((CraftPlayer) player).getHandle().connection.send(packets.getFirst());
+            return;
+        }
+
+        for (int i = 0; i < packets.size(); i += BundlerInfo.BUNDLE_SIZE_LIMIT) {
+            List<Packet<? super ClientGamePacketListener>> bundle = packets.subList(i, Math.min(i + BundlerInfo.BUNDLE_SIZE_LIMIT, packets.size()));
+            ((CraftPlayer) player).getHandle().connection.send(new ClientboundBundlePacket(List.copyOf(bundle)));
+        }
+
+    }
+
+    private record Entry(Player player, List<Packet<? super ClientGamePacketListener>> packets) {
+
+        private Entry(Player player) {
+            this(player, new ArrayList<>());
+        }
+
+    }
+
+}
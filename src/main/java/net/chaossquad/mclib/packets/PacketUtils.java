@@ -1,25 +1,35 @@
 package net.chaossquad.mclib.packets;
 
+import com.mojang.math.Transformation;
 import net.chaossquad.mclib.blocks.BlockStructure;
 import net.chaossquad.mclib.blocks.BlockStructureEntry;
 import net.chaossquad.mclib.packets.packetentity.PacketEntity;
 import net.chaossquad.mclib.packets.packetentity.PacketEntityData;
+import net.chaossquad.mclib.packets.packetentity.PacketEntityGroup;
 import net.chaossquad.mclib.packets.packetentity.PacketEntityManager;
+import net.minecraft.core.BlockPos;
 import net.minecraft.network.Connection;
 import net.minecraft.server.level.ServerPlayer;
 import net.minecraft.server.network.ServerCommonPacketListenerImpl;
 import net.minecraft.server.network.ServerGamePacketListenerImpl;
 import net.minecraft.world.entity.Display;
 import net.minecraft.world.entity.EntityType;
+import net.minecraft.world.level.EmptyBlockGetter;
+import net.minecraft.world.level.block.Block;
+import net.minecraft.world.level.block.state.BlockState;
 import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.craftbukkit.CraftWorld;
 import org.bukkit.craftbukkit.block.data.CraftBlockData;
 import org.bukkit.util.Vector;
+import org.joml.Vector3f;
 
-import java.lang.reflect.Field;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Utilities for NMS packets.
@@ -31,24 +41,36 @@ public final class PacketUtils {
     // CONNECTION
 
     /**
-     * Returns the connection of a NMS Player.
-     * @param serverPlayer nms player
-     * @return connection
+     * Handle of the connection field in {@link ServerCommonPacketListenerImpl}.
+     * Resolved once, null if the field could not be found.
      */
-    public static Connection getConnection(ServerPlayer serverPlayer) {
+    private static final VarHandle CONNECTION_FIELD = findConnectionField();
 
-        try {
-            ServerGamePacketListenerImpl serverGamePacketListener = serverPlayer.connection;
-            Field field = ServerCommonPacketListenerImpl.class.getDeclaredField("connection");
-            field.setAccessible(true);
+    private static VarHandle findConnectionField() {
 
-            return  (Connection) field.get(serverGamePacketListener);
+        try {
+            return MethodHandles.privateLookupIn(ServerCommonPacketListenerImpl.class, MethodHandles.lookup()).findVarHandle(ServerCommonPacketListenerImpl.class, "connection", Connection.class);
         } catch (NoSuchFieldException | IllegalAccessException e) {
             return null;
         }
 
     }
 
+    /**
+     * Returns the connection of a NMS Player.
+     * For bukkit players, {@link ConnectionRegistry#get(org.bukkit.entity.Player)} returns a cached handle.
+     * @param serverPlayer nms player
+     * @return connection
+     */
+    public static Connection getConnection(ServerPlayer serverPlayer) {
+        if (CONNECTION_FIELD == null || serverPlayer == null) return null;
+
+        ServerGamePacketListenerImpl serverGamePacketListener = serverPlayer.connection;
+        if (serverGamePacketListener == null) return null;
+
+        return (Connection) CONNECTION_FIELD.get((ServerCommonPacketListenerImpl) serverGamePacketListener);
+    }
+
     // PACKET ENTITIES
 
     /**
@@ -57,6 +79,13 @@ public final class PacketUtils {
      */
     public static final String DATA_VALUE_BLOCKSTRUCTURE_RELATIVE_POSITION = "mclib.blockstructure.relativeposition";
 
+    /**
+     * Key of the size of a spawned block display in blocks.
+     * Will be added when a {@link BlockStructure} is spawned with meshing by {@link #spawnBlockStructure(PacketEntityManager, BlockStructure, Location, List, boolean)}.
+     * The display covers the cells from {@link #DATA_VALUE_BLOCKSTRUCTURE_RELATIVE_POSITION} (inclusive) to relative position + size (exclusive).
+     */
+    public static final String DATA_VALUE_BLOCKSTRUCTURE_SIZE = "mclib.blockstructure.size";
+
     /**
      * Creates a list of block displays for the specified block structure at the specified location and adds them to the specified {@link PacketEntityManager}.
      * @param manager the packet entity manager the entities should be added to
@@ -66,45 +95,262 @@ public final class PacketUtils {
      * @return a list of the spawned packet entities
      */
     public static List<PacketEntity<Display.BlockDisplay>> spawnBlockStructure(PacketEntityManager manager, BlockStructure structure, Location location, List<String> scoreboardTags) {
+        return spawnBlockStructure(manager, structure, location, scoreboardTags, false);
+    }
+
+    /**
+     * Creates a list of block displays for the specified block structure at the specified location and adds them to the specified {@link PacketEntityManager}.<br/>
+     * With meshing enabled, boxes of the same full-cube block state are merged greedily (along x, then y, then z) into one block display that is scaled to the size of the box.
+     * The textures of merged blocks are stretched over the box, so meshing fits best for blocks with uniform textures (e.g. concrete, wool, glass).
+     * Blocks that are not full cubes (stairs, slabs, fences, ...) are never merged.
+     * The covered cells are stored in {@link #DATA_VALUE_BLOCKSTRUCTURE_RELATIVE_POSITION} and {@link #DATA_VALUE_BLOCKSTRUCTURE_SIZE}.
+     * @param manager the packet entity manager the entities should be added to
+     * @param structure the block structure that should be spawned
+     * @param location the location where the structure should be spawned
+     * @param scoreboardTags list of scoreboard tags that should be added
+     * @param mesh merge boxes of the same block state into one block display
+     * @return a list of the spawned packet entities
+     */
+    public static List<PacketEntity<Display.BlockDisplay>> spawnBlockStructure(PacketEntityManager manager, BlockStructure structure, Location location, List<String> scoreboardTags, boolean mesh) {
         location = location.clone();
-        structure = structure.clone();
         List<PacketEntity<Display.BlockDisplay>> blockDisplays = new ArrayList<>();
 
-        int rx = 0;
-        for (int x = location.getBlockX(); x < location.getBlockX() + structure.getXLength(); x++) {
-            int ry = 0;
-            for (int y = location.getBlockY(); y < location.getBlockY() + structure.getYLength(); y++) {
-                int rz = 0;
-                for (int z = location.getBlockZ(); z < location.getBlockZ() + structure.getZLength(); z++) {
-                    BlockStructureEntry entry = structure.getBlock(rx, ry, rz);
+        for (StructureBox box : getStructureBoxes(structure, mesh)) {
+            PacketEntity<Display.BlockDisplay> packetEntity = spawnStructureBox(manager, location, box, scoreboardTags, mesh);
+            if (packetEntity != null) blockDisplays.add(packetEntity);
+        }
+
+        return List.copyOf(blockDisplays);
+    }
+
+    /**
+     * Spawns the block structure as a {@link PacketEntityGroup} with its anchor at the block location.
+     * The group can be moved, rotated, shown and hidden with single operations instead of updating every block display.
+     * The block displays still have the relative position data of {@link #spawnBlockStructure(PacketEntityManager, BlockStructure, Location, List, boolean)}.
+     * @param manager the packet entity manager the entities should be added to
+     * @param structure the block structure that should be spawned
+     * @param location the location where the structure should be spawned
+     * @param scoreboardTags list of scoreboard tags that should be added
+     * @param mesh merge boxes of the same block state into one block display
+     * @return group of the spawned block displays
+     */
+    public static PacketEntityGroup spawnBlockStructureGroup(PacketEntityManager manager, BlockStructure structure, Location location, List<String> scoreboardTags, boolean mesh) {
+        PacketEntityGroup group = new PacketEntityGroup(manager, location.toBlockLocation());
+        group.addMembers(spawnBlockStructure(manager, structure, location, scoreboardTags, mesh));
+        return group;
+    }
+
+    /**
+     * Spawns the block structure over multiple ticks instead of spawning all block displays at once.<br/>
+     * Every tick, block displays are spawned until the entity or time budget of the tick is used up.
+     * The structure is spawned section by section (16x16x16 blocks), starting with the sections closest to the players in the world.
+     * The returned task reports the progress, can be cancelled, and completes its future with all spawned entities.
+     * @param manager the packet entity manager the entities should be added to
+     * @param structure the block structure that should be spawned
+     * @param location the location where the structure should be spawned
+     * @param scoreboardTags list of scoreboard tags that should be added
+     * @param mesh merge boxes of the same block state into one block display, see {@link #spawnBlockStructure(PacketEntityManager, BlockStructure, Location, List, boolean)}
+     * @param entitiesPerTick maximum number of block displays spawned per tick
+     * @param timePerTick maximum time spent spawning per tick (must be positive), null for no time limit
+     * @param spawnCallback called for every spawned block display (e.g. to add viewers), can be null
+     * @return spawn task
+     */
+    public static BlockStructureSpawnTask spawnBlockStructureIncrementally(PacketEntityManager manager, BlockStructure structure, Location location, List<String> scoreboardTags, boolean mesh, int entitiesPerTick, Duration timePerTick, Consumer<PacketEntity<Display.BlockDisplay>> spawnCallback) {
+        if (manager == null || structure == null || location == null || location.getWorld() == null) throw new IllegalArgumentException("Manager, structure and location cannot be null");
+        if (entitiesPerTick < 1) throw new IllegalArgumentException("Entities per tick must be at least 1");
+        if (timePerTick != null && (timePerTick.isZero() || timePerTick.isNegative())) throw new IllegalArgumentException("Time per tick must be positive");
+
+        BlockStructureSpawnTask task = new BlockStructureSpawnTask(manager, location.clone(), getStructureBoxes(structure, mesh), scoreboardTags != null ? List.copyOf(scoreboardTags) : null, mesh, entitiesPerTick, timePerTick != null ? timePerTick.toNanos() : Long.MAX_VALUE, spawnCallback);
+        task.start();
+        return task;
+    }
+
+    /**
+     * Returns the boxes a block structure is spawned as.
+     * @param structure block structure
+     * @param mesh merge boxes of the same full-cube block state
+     * @return boxes, ordered by x, y, z of their first cell
+     */
+    static List<StructureBox> getStructureBoxes(BlockStructure structure, boolean mesh) {
+        return getStructureBoxes(getBlockStates(structure.clone()), mesh);
+    }
+
+    /**
+     * Returns the boxes the block states are spawned as.
+     * @param states block states indexed by relative x, y, z, null for air
+     * @param mesh merge boxes of the same full-cube block state
+     * @return boxes, ordered by x, y, z of their first cell
+     */
+    static List<StructureBox> getStructureBoxes(BlockState[][][] states, boolean mesh) {
+        List<StructureBox> boxes = new ArrayList<>();
 
-                    if (entry.type() != Material.AIR) {
+        int xLength = states.length;
+        int yLength = xLength > 0 ? states[0].length : 0;
+        int zLength = yLength > 0 ? states[0][0].length : 0;
+        boolean[][][] covered = new boolean[xLength][yLength][zLength];
 
-                        Display.BlockDisplay blockDisplay = new Display.BlockDisplay(EntityType.BLOCK_DISPLAY, ((CraftWorld) location.getWorld()).getHandle());
-                        blockDisplay.setPos(x, y, z);
-                        blockDisplay.setNoGravity(true);
-                        blockDisplay.setBlockState(((CraftBlockData) entry.data()).getState());
+        for (int rx = 0; rx < xLength; rx++) {
+            for (int ry = 0; ry < yLength; ry++) {
+                for (int rz = 0; rz < zLength; rz++) {
+                    BlockState state = states[rx][ry][rz];
+                    if (state == null || covered[rx][ry][rz]) continue;
 
-                        if (scoreboardTags != null) {
-                            for (String tag : List.copyOf(scoreboardTags)) {
-                                blockDisplay.addTag(tag);
+                    int[] size = mesh && isMergeable(state) ? growBox(states, covered, rx, ry, rz) : new int[]{1, 1, 1};
+
+                    for (int x = rx; x < rx + size[0]; x++) {
+                        for (int y = ry; y < ry + size[1]; y++) {
+                            for (int z = rz; z < rz + size[2]; z++) {
+                                covered[x][y][z] = true;
                             }
                         }
+                    }
 
-                        PacketEntity<Display.BlockDisplay> packetEntity = (PacketEntity<Display.BlockDisplay>) manager.addEntity(blockDisplay);
-                        packetEntity.addData(DATA_VALUE_BLOCKSTRUCTURE_RELATIVE_POSITION, new PacketEntityData<>(new Vector(rx, ry, rz)));
-                        blockDisplays.add(packetEntity);
+                    boxes.add(new StructureBox(rx, ry, rz, size[0], size[1], size[2], state));
+                }
+            }
+        }
 
-                    }
+        return boxes;
+    }
+
+    /**
+     * Spawns the block display of a box.
+     * @param manager manager
+     * @param location location of the structure
+     * @param box box
+     * @param scoreboardTags scoreboard tags, can be null
+     * @param mesh add the size data
+     * @return packet entity, null if the entity could not be added
+     */
+    static PacketEntity<Display.BlockDisplay> spawnStructureBox(PacketEntityManager manager, Location location, StructureBox box, List<String> scoreboardTags, boolean mesh) {
+        Display.BlockDisplay blockDisplay = new Display.BlockDisplay(EntityType.BLOCK_DISPLAY, ((CraftWorld) location.getWorld()).getHandle());
+        blockDisplay.setPos(location.getBlockX() + box.x(), location.getBlockY() + box.y(), location.getBlockZ() + box.z());
+        blockDisplay.setNoGravity(true);
+        blockDisplay.setBlockState(box.state());
+
+        if (box.sizeX() > 1 || box.sizeY() > 1 || box.sizeZ() > 1) {
+            blockDisplay.setTransformation(new Transformation(null, null, new Vector3f(box.sizeX(), box.sizeY(), box.sizeZ()), null));
+        }
+
+        if (scoreboardTags != null) {
+            for (String tag : List.copyOf(scoreboardTags)) {
+                blockDisplay.addTag(tag);
+            }
+        }
+
+        PacketEntity<Display.BlockDisplay> packetEntity = (PacketEntity<Display.BlockDisplay>) manager.addEntity(blockDisplay);
+        if (packetEntity == null) return null;
+
+        packetEntity.addData(DATA_VALUE_BLOCKSTRUCTURE_RELATIVE_POSITION, new PacketEntityData<>(new Vector(box.x(), box.y(), box.z())));
+        if (mesh) packetEntity.addData(DATA_VALUE_BLOCKSTRUCTURE_SIZE, new PacketEntityData<>(new Vector(box.sizeX(), box.sizeY(), box.sizeZ())));
+        return packetEntity;
+    }
+
+    /**
+     * A box of cells of a block structure that is spawned as one block display.
+     * @param x relative x of the first cell
+     * @param y relative y of the first cell
+     * @param z relative z of the first cell
+     * @param sizeX size x
+     * @param sizeY size y
+     * @param sizeZ size z
+     * @param state block state
+     */
+    record StructureBox(int x, int y, int z, int sizeX, int sizeY, int sizeZ, BlockState state) {}
 
-                    rz++;
+    /**
+     * Returns the block states of a block structure.
+     * @param structure block structure
+     * @return block states indexed by relative x, y, z, null for air
+     */
+    private static BlockState[][][] getBlockStates(BlockStructure structure) {
+        BlockState[][][] states = new BlockState[structure.getXLength()][structure.getYLength()][structure.getZLength()];
+
+        for (int x = 0; x < structure.getXLength(); x++) {
+            for (int y = 0; y < structure.getYLength(); y++) {
+                for (int z = 0; z < structure.getZLength(); z++) {
+                    BlockStructureEntry entry = structure.getBlock(x, y, z);
+                    if (entry.type() != Material.AIR) states[x][y][z] = ((CraftBlockData) entry.data()).getState();
                 }
-                ry++;
             }
-            rx++;
         }
 
-        return List.copyOf(blockDisplays);
+        return states;
+    }
+
+    /**
+     * Returns true if a block state can be merged with its neighbors without changing its shape.
+     * @param state block state
+     * @return full cube
+     */
+    private static boolean isMergeable(BlockState state) {
+        return Block.isShapeFullBlock(state.getShape(EmptyBlockGetter.INSTANCE, BlockPos.ZERO));
+    }
+
+    /**
+     * Grows the largest box of the same block state from the start cell, first along x, then y, then z.
+     * @param states block states
+     * @param covered cells that are already covered by a block display
+     * @param x start x
+     * @param y start y
+     * @param z start z
+     * @return size of the box (x, y, z)
+     */
+    private static int[] growBox(BlockState[][][] states, boolean[][][] covered, int x, int y, int z) {
+        BlockState state = states[x][y][z];
+        int sizeX = 1;
+        int sizeY = 1;
+        int sizeZ = 1;
+
+        while (x + sizeX < states.length && canMerge(states, covered, state, x + sizeX, y, z)) {
+            sizeX++;
+        }
+
+        grow:
+        while (y + sizeY < states[0].length) {
+            for (int i = x; i < x + sizeX; i++) {
+                if (!canMerge(states, covered, state, i, y + sizeY, z)) break grow;
+            }
+            sizeY++;
+        }
+
+        grow:
+        while (z + sizeZ < states[0][0].length) {
+            for (int i = x; i < x + sizeX; i++) {
+                for (int j = y; j < y + sizeY; j++) {
+                    if (!canMerge(states, covered, state, i, j, z + sizeZ)) break grow;
+                }
+            }
+            sizeZ++;
+        }
+
+        return new int[]{sizeX, sizeY, sizeZ};
+    }
+
+    private static boolean canMerge(BlockState[][][] states, boolean[][][] covered, BlockState state, int x, int y, int z) {
+        return states[x][y][z] == state && !covered[x][y][z];
+    }
+
+    /**
+     * Returns the cells of the block structure that are covered by a block display spawned by {@link #spawnBlockStructure(PacketEntityManager, BlockStructure, Location, List, boolean)}.
+     * @param entity packet entity
+     * @return relative positions of the covered cells, empty if the entity is not part of a block structure
+     */
+    public static List<Vector> getBlockStructureCells(PacketEntity<?> entity) {
+        if (!(entity.getData(DATA_VALUE_BLOCKSTRUCTURE_RELATIVE_POSITION) instanceof PacketEntityData<?> positionData && positionData.data() instanceof Vector position)) return List.of();
+
+        Vector size = entity.getData(DATA_VALUE_BLOCKSTRUCTURE_SIZE) instanceof PacketEntityData<?> sizeData && sizeData.data() instanceof Vector vector ? vector : new Vector(1, 1, 1);
+        List<Vector> cells = new ArrayList<>();
+
+        for (int x = 0; x < size.getBlockX(); x++) {
+            for (int y = 0; y < size.getBlockY(); y++) {
+                for (int z = 0; z < size.getBlockZ(); z++) {
+                    cells.add(position.clone().add(new Vector(x, y, z)));
+                }
+            }
+        }
+
+        return cells;
     }
 
 }
@@ -0,0 +1,106 @@
+package net.chaossquad.mclib.packets;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoop;
+import net.minecraft.network.Connection;
+import net.minecraft.network.protocol.Packet;
+
+import java.util.UUID;
+
+/**
+ * Cached connection handle of a player.
+ * Obtained from the {@link ConnectionRegistry}.
+ */
+public final class PlayerConnection {
+    private final UUID uuid;
+    private final Connection connection;
+    private final Channel channel;
+
+    /**
+     * Creates a PlayerConnection.
+     * @param uuid uuid of the player
+     * @param connection connection
+     */
+    PlayerConnection(UUID uuid, Connection connection) {
+        this.uuid = uuid;
+        this.connection = connection;
+        this.channel = connection.channel;
+    }
+
+    // CONNECTION
+
+    /**
+     * Returns the uuid of the player.
+     * @return uuid
+     */
+    public UUID getUuid() {
+        return this.uuid;
+    }
+
+    /**
+     * Returns the NMS connection.
+     * @return connection
+     */
+    public Connection getConnection() {
+        return this.connection;
+    }
+
+    /**
+     * Returns the netty channel of the connection.
+     * @return channel
+     */
+    public Channel getChannel() {
+        return this.channel;
+    }
+
+    /**
+     * Sends a packet to the player.
+     * @param packet packet
+     */
+    public void send(Packet<?> packet) {
+        this.connection.send(packet);
+    }
+
+    // CHANNEL STATE
+
+    /**
+     * Returns true if the channel is open.
+     * @return open
+     */
+    public boolean isOpen() {
+        return this.channel.isOpen();
+    }
+
+    /**
+     * Returns true if the channel can be written to without buffering above the high water mark.
+     * @return writable
+     */
+    public boolean isWritable() {
+        return this.channel.isWritable();
+    }
+
+    /**
+     * Returns the number of bytes that can be written until the channel becomes unwritable.
+     * @return bytes before unwritable
+     */
+    public long bytesBeforeUnwritable() {
+        return this.channel.bytesBeforeUnwritable();
+    }
+
+    /**
+     * Returns the event loop of the channel.
+     * @return event loop
+     */
+    public EventLoop getEventLoop() {
+        return this.channel.eventLoop();
+    }
+
+    /**
+     * Returns true if the current thread is the event loop of the channel.
+     * @return in event loop
+     */
+    public boolean inEventLoop() {
+        return this.channel.eventLoop().inEventLoop();
+    }
+
+}
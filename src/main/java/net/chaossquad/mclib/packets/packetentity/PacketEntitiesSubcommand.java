@@ -82,6 +82,16 @@ public class PacketEntitiesSubcommand implements TabCompletingCommandExecutor {
                                 sender.sendMessage("§7location: " + entity.getEntity().getX() + " " + entity.getEntity().getY() + " " + entity.getEntity().getZ());
                             }
 
+                        }
+                        case "viewrange" -> {
+
+                            if (args.length > 2) {
+                                entity.setViewRange(Double.parseDouble(args[2]));
+                                sender.sendMessage("§aView range updated");
+                            } else {
+                                sender.sendMessage("§7viewrange: " + entity.getViewRange());
+                            }
+
                         }
                         case "tags" -> {
 
@@ -290,6 +300,7 @@ public class PacketEntitiesSubcommand implements TabCompletingCommandExecutor {
                                     "§7synchedentitydata: run command for info\n" +
                                     "§7removed: " + entity.isRemoved() + " (editable)\n" +
                                     "§7players: " + entity.getPlayers().size() + " entries (modifiable)\n" +
+                                    "§7viewrange: " + entity.getViewRange() + " (modifiable)\n" +
                                     "§7customdata: " + entity.getData().size() + " entries (modifiable)"
                     );
 
@@ -320,7 +331,7 @@ public class PacketEntitiesSubcommand implements TabCompletingCommandExecutor {
     public List<String> onTabComplete(CommandSender sender, Command cmd, String label, String[] args) {
 
         return switch (args.length) {
-            case 2 -> List.of("entityid", "type", "location", "tags", "synchedentitydata", "removed", "players", "customdata");
+            case 2 -> List.of("entityid", "type", "location", "viewrange", "tags", "synchedentitydata", "removed", "players", "customdata");
             case 3 -> switch (args[2]) {
                 case "tags", "players" -> List.of("add", "remove", "clear");
                 case "removed" -> List.of("true");
@@ -1,16 +1,23 @@
 package net.chaossquad.mclib.packets.packetentity;
 
 import net.minecraft.network.protocol.Packet;
+import net.minecraft.network.protocol.game.ClientGamePacketListener;
 import net.minecraft.network.protocol.game.ClientboundAddEntityPacket;
-import net.minecraft.network.protocol.game.ClientboundRemoveEntitiesPacket;
+import net.minecraft.network.protocol.game.ClientboundEntityPositionSyncPacket;
+import net.minecraft.network.protocol.game.ClientboundMoveEntityPacket;
+import net.minecraft.network.protocol.game.ClientboundRotateHeadPacket;
 import net.minecraft.network.protocol.game.ClientboundSetEntityDataPacket;
+import net.minecraft.network.protocol.game.VecDeltaCodec;
+import net.minecraft.network.syncher.EntityDataAccessor;
 import net.minecraft.network.syncher.SynchedEntityData;
 import net.minecraft.server.level.ServerEntity;
+import net.minecraft.util.Mth;
 import net.minecraft.world.entity.Entity;
+import net.minecraft.world.level.Level;
 import net.minecraft.world.level.entity.EntityInLevelCallback;
+import net.minecraft.world.phys.Vec3;
 import org.bukkit.World;
 import org.bukkit.craftbukkit.CraftWorld;
-import org.bukkit.craftbukkit.entity.CraftPlayer;
 import org.bukkit.entity.Player;
 
 import java.util.*;
@@ -24,8 +31,20 @@ import java.util.function.BiConsumer;
 public class PacketEntity<T extends Entity> implements EntityInLevelCallback {
     private final PacketEntityManager manager;
     private final T entity;
-    private final List<Player> players;
+    private final Set<Player> players;
     private final Map<String, PacketEntityData<?>> data;
+    private double viewRange;
+    private final VecDeltaCodec positionCodec;
+    private final Set<Player> freshViewers;
+    private byte sentYaw;
+    private byte sentPitch;
+    private byte sentHeadYaw;
+    private boolean moved;
+    private boolean dataDirty;
+    private boolean queued;
+    private Level indexedLevel;
+    private long indexedSection;
+    private PacketEntityGroup group;
 
     /**
      * Creates the PacketEntity.
@@ -36,8 +55,21 @@ public class PacketEntity<T extends Entity> implements EntityInLevelCallback {
         this.manager = manager;
         this.entity = entity;
         this.entity.setLevelCallback(this);
-        this.players = new ArrayList<>();
+        this.players = new LinkedHashSet<>();
         this.data = new HashMap<>();
+        this.viewRange = 0;
+        this.positionCodec = new VecDeltaCodec();
+        this.positionCodec.setBase(this.entity.trackingPosition());
+        this.freshViewers = new HashSet<>();
+        this.sentYaw = Mth.packDegrees(this.entity.getYRot());
+        this.sentPitch = Mth.packDegrees(this.entity.getXRot());
+        this.sentHeadYaw = Mth.packDegrees(this.entity.getYHeadRot());
+        this.moved = false;
+        this.dataDirty = false;
+        this.queued = false;
+        this.indexedLevel = null;
+        this.indexedSection = 0;
+        this.group = null;
     }
 
     // ENTITY
@@ -86,14 +118,19 @@ public class PacketEntity<T extends Entity> implements EntityInLevelCallback {
     }
 
     /**
-     * Removes all players from the packet entity.
+     * Removes all players from the packet entity that don't meet the conditions for seeing the entity anymore.
      */
     public void cleanupPlayers() {
+        Iterator<Player> iterator = this.players.iterator();
 
-        for (Player player : List.copyOf(this.players)) {
+        while (iterator.hasNext()) {
+            Player player = iterator.next();
 
             if (!this.showEntityCondition(player)) {
-                this.players.remove(player);
+                iterator.remove();
+                this.freshViewers.remove(player);
+                this.manager.removeViewer(player, this);
+                this.manager.getTracker().onViewerRemoved(this, player);
             }
 
         }
@@ -106,15 +143,15 @@ public class PacketEntity<T extends Entity> implements EntityInLevelCallback {
      * @return list of players
      */
     public List<Player> getPlayers() {
-        List<Player> playerList = new ArrayList<>();
+        List<Player> playerList = new ArrayList<>(this.players.size());
 
-        for (Player player : List.copyOf(this.players)) {
+        for (Player player : this.players) {
             if (this.showEntityCondition(player)) {
                 playerList.add(player);
             }
         }
 
-        return List.copyOf(playerList);
+        return playerList;
     }
 
     /**
@@ -136,10 +173,14 @@ public class PacketEntity<T extends Entity> implements EntityInLevelCallback {
         if (this.entity.isRemoved()) return false;
         if (!this.showEntityCondition(player)) return false;
 
-        if (!this.players.contains(player)) this.players.add(player);
+        if (this.players.add(player)) this.manager.addViewer(player, this);
 
+        this.manager.cancelDespawn(player, this.entity.getId());
         this.sendEntityData(player, true);
 
+        // the add packet contains the current position, the pending relative move does not apply to the player
+        if (this.moved) this.freshViewers.add(player);
+
         return true;
     }
 
@@ -149,10 +190,34 @@ public class PacketEntity<T extends Entity> implements EntityInLevelCallback {
      */
     public void removePlayer(Player player) {
 
-        ClientboundRemoveEntitiesPacket packet = new ClientboundRemoveEntitiesPacket(this.entity.getId());
-        ((CraftPlayer) player).getHandle().connection.send(packet);
+        this.manager.despawn(player, this.entity.getId());
+        this.forgetPlayer(player);
+    }
+
+    /**
+     * Removes a player without sending a remove packet.
+     * Used when the client has already discarded the entity (quit, world change).
+     * @param player player
+     */
+    void forgetPlayer(Player player) {
+
+        if (this.players.remove(player)) {
+            this.manager.removeViewer(player, this);
+            this.manager.getTracker().onViewerRemoved(this, player);
+        }
 
-        this.players.remove(player);
+        this.freshViewers.remove(player);
+    }
+
+    /**
+     * Spawns the entity again for a player that is already a viewer.
+     * Used when the client has discarded the entity while the player stays a viewer (respawn).
+     * @param player player
+     */
+    void respawnFor(Player player) {
+        if (!this.hasPlayer(player)) return;
+        this.sendEntityData(player, true);
+        if (this.moved) this.freshViewers.add(player);
     }
 
     /**
@@ -166,6 +231,31 @@ public class PacketEntity<T extends Entity> implements EntityInLevelCallback {
 
     }
 
+    /**
+     * Returns the view range.
+     * @return view range in blocks, 0 if the viewers are managed manually
+     */
+    public double getViewRange() {
+        return this.viewRange;
+    }
+
+    /**
+     * Sets the view range and enables automatic viewer tracking.<br/>
+     * Players in the same world within the range are added as viewers, players that leave the range are removed again.
+     * See {@link PacketEntityTracker}.
+     * @param viewRange view range in blocks, 0 to disable tracking (the current viewers are kept)
+     */
+    public void setViewRange(double viewRange) {
+        this.viewRange = Math.max(0, viewRange);
+
+        if (this.viewRange > 0) {
+            this.manager.getTracker().track(this);
+        } else {
+            this.manager.getTracker().untrack(this);
+        }
+
+    }
+
     // ENTITY DATA
 
     /**
@@ -180,30 +270,29 @@ public class PacketEntity<T extends Entity> implements EntityInLevelCallback {
 
         // Send entity data if full is set
         if (full) {
-            ServerEntity serverEntity = new ServerEntity(this.entity.level().getMinecraftWorld(), this.entity, 0, false, packet -> {
-            }, new BiConsumer<Packet<?>, List<UUID>>() {
-                @Override
-                public void accept(Packet<?> packet, List<UUID> uuids) {}
-            }, Set.of());
-            ClientboundAddEntityPacket packet = new ClientboundAddEntityPacket(this.entity, serverEntity);
-            ((CraftPlayer) player).getHandle().connection.send(packet);
+            this.manager.sendPacket(player, this.createAddEntityPacket());
         }
 
-        List<SynchedEntityData.DataValue<?>> data = this.entity.getEntityData().getNonDefaultValues();
-        if (data == null || data.isEmpty()) return false;
+        ClientboundSetEntityDataPacket packet = this.createEntityDataPacket();
+        if (packet == null) return false;
 
-        ((CraftPlayer) player).getHandle().connection.send(new ClientboundSetEntityDataPacket(this.entity.getId(), data));
+        this.manager.sendPacket(player, packet);
         return true;
     }
 
     /**
      * Sends all entity data modifications to the players.
+     * The packets are created once and shared between all players.
      * @param full Re-add the entity to the player
      */
     public void sendEntityData(boolean full) {
+        List<Player> players = this.getPlayers();
+
+        if (!players.isEmpty()) {
+            if (full) this.manager.broadcastPacket(players, this.createAddEntityPacket());
 
-        for (Player player : this.getPlayers()) {
-            this.sendEntityData(player, full);
+            ClientboundSetEntityDataPacket packet = this.createEntityDataPacket();
+            if (packet != null) this.manager.broadcastPacket(players, packet);
         }
 
         if (this.entity.getEntityData().isDirty()) {
@@ -212,6 +301,29 @@ public class PacketEntity<T extends Entity> implements EntityInLevelCallback {
 
     }
 
+    /**
+     * Creates the packet that spawns the entity on the client.
+     * @return add entity packet
+     */
+    private ClientboundAddEntityPacket createAddEntityPacket() {
+        ServerEntity serverEntity = new ServerEntity(this.entity.level().getMinecraftWorld(), this.entity, 0, false, packet -> {
+        }, new BiConsumer<Packet<?>, List<UUID>>() {
+            @Override
+            public void accept(Packet<?> packet, List<UUID> uuids) {}
+        }, Set.of());
+        return new ClientboundAddEntityPacket(this.entity, serverEntity);
+    }
+
+    /**
+     * Creates the packet that contains all non-default entity data values.
+     * @return entity data packet, null if all values are default
+     */
+    private ClientboundSetEntityDataPacket createEntityDataPacket() {
+        List<SynchedEntityData.DataValue<?>> data = this.entity.getEntityData().getNonDefaultValues();
+        if (data == null || data.isEmpty()) return null;
+        return new ClientboundSetEntityDataPacket(this.entity.getId(), data);
+    }
+
     /**
      * Sends all entity data modifications to the specified player.
      * @param player player
@@ -228,6 +340,146 @@ public class PacketEntity<T extends Entity> implements EntityInLevelCallback {
         this.sendEntityData(false);
     }
 
+    // MOVEMENT
+
+    /**
+     * Sets the rotation of the entity and schedules a movement update for the viewers.
+     * @param yaw yaw (also used as head rotation)
+     * @param pitch pitch
+     */
+    public void setRotation(float yaw, float pitch) {
+        this.entity.setYRot(yaw);
+        this.entity.setXRot(pitch);
+        this.entity.setYHeadRot(yaw);
+        this.markMoved();
+    }
+
+    /**
+     * Schedules a movement update for the viewers.<br/>
+     * Position changes are detected automatically.
+     * This only needs to be called after changing the rotation of the entity directly.
+     * The update is sent with the next update of the manager, multiple moves in between are combined into one update.
+     */
+    public void markMoved() {
+        this.moved = true;
+        this.enqueue();
+    }
+
+    /**
+     * Sends the movement since the last update to the viewers.
+     * Uses relative move packets if the distance fits into them, else a position sync packet.
+     * Viewers that have been added since the last update get a position sync packet.
+     */
+    private void syncMovement() {
+        if (!this.moved) return;
+        this.moved = false;
+
+        Vec3 position = this.entity.trackingPosition();
+        long dx = this.positionCodec.encodeX(position);
+        long dy = this.positionCodec.encodeY(position);
+        long dz = this.positionCodec.encodeZ(position);
+        byte yaw = Mth.packDegrees(this.entity.getYRot());
+        byte pitch = Mth.packDegrees(this.entity.getXRot());
+        byte headYaw = Mth.packDegrees(this.entity.getYHeadRot());
+
+        boolean positionChanged = dx != 0 || dy != 0 || dz != 0;
+        boolean rotationChanged = yaw != this.sentYaw || pitch != this.sentPitch;
+        boolean headRotationChanged = headYaw != this.sentHeadYaw;
+        boolean fits = fitsShort(dx) && fitsShort(dy) && fitsShort(dz);
+
+        Packet<ClientGamePacketListener> movePacket;
+        Packet<ClientGamePacketListener> syncPacket = null;
+
+        if (!fits) {
+            syncPacket = ClientboundEntityPositionSyncPacket.of(this.entity);
+            movePacket = syncPacket;
+        } else if (positionChanged && rotationChanged) {
+            movePacket = new ClientboundMoveEntityPacket.PosRot(this.entity.getId(), (short) dx, (short) dy, (short) dz, yaw, pitch, this.entity.onGround());
+        } else if (positionChanged) {
+            movePacket = new ClientboundMoveEntityPacket.Pos(this.entity.getId(), (short) dx, (short) dy, (short) dz, this.entity.onGround());
+        } else if (rotationChanged) {
+            movePacket = new ClientboundMoveEntityPacket.Rot(this.entity.getId(), yaw, pitch, this.entity.onGround());
+        } else {
+            movePacket = null;
+        }
+
+        Packet<ClientGamePacketListener> headPacket = headRotationChanged ? new ClientboundRotateHeadPacket(this.entity, headYaw) : null;
+
+        List<Player> players = this.getPlayers();
+        List<Player> movedPlayers = players;
+
+        if (!this.freshViewers.isEmpty()) {
+            List<Player> freshPlayers = new ArrayList<>();
+            movedPlayers = new ArrayList<>();
+
+            for (Player player : players) {
+                (this.freshViewers.contains(player) ? freshPlayers : movedPlayers).add(player);
+            }
+
+            if (!freshPlayers.isEmpty()) this.manager.broadcastPacket(freshPlayers, syncPacket != null ? syncPacket : ClientboundEntityPositionSyncPacket.of(this.entity));
+        }
+
+        if (movePacket != null) this.manager.broadcastPacket(movedPlayers, movePacket);
+        if (headPacket != null) this.manager.broadcastPacket(players, headPacket);
+
+        this.freshViewers.clear();
+        if (positionChanged || !fits) this.positionCodec.setBase(position);
+        this.sentYaw = yaw;
+        this.sentPitch = pitch;
+        this.sentHeadYaw = headYaw;
+    }
+
+    private static boolean fitsShort(long value) {
+        return value >= Short.MIN_VALUE && value <= Short.MAX_VALUE;
+    }
+
+    // UPDATES
+
+    /**
+     * Sets a value of the entity data and schedules an entity data update for the viewers.
+     * @param accessor entity data accessor (e.g. {@code Display.DATA_SCALE_ID})
+     * @param value value
+     * @param <V> value type
+     */
+    public <V> void setEntityData(EntityDataAccessor<V> accessor, V value) {
+        this.entity.getEntityData().set(accessor, value);
+        this.markDirty();
+    }
+
+    /**
+     * Schedules an entity data update for the viewers.
+     * Only the changed values are sent.
+     * This needs to be called after modifying the {@link SynchedEntityData} of the entity directly.
+     */
+    public void markDirty() {
+        this.dataDirty = true;
+        this.enqueue();
+    }
+
+    private void enqueue() {
+        if (this.queued) return;
+        this.queued = true;
+        this.manager.markDirty(this);
+    }
+
+    /**
+     * Sends the scheduled movement and entity data updates to the viewers.
+     * Called by the manager for every entity in its dirty queue.
+     */
+    void flushUpdates() {
+        this.queued = false;
+        this.syncMovement();
+
+        SynchedEntityData entityData = this.entity.getEntityData();
+        if (!this.dataDirty && !entityData.isDirty()) return;
+        this.dataDirty = false;
+
+        List<SynchedEntityData.DataValue<?>> values = entityData.packDirty();
+        if (values == null || values.isEmpty()) return;
+
+        this.manager.broadcastPacket(this.getPlayers(), new ClientboundSetEntityDataPacket(this.entity.getId(), values));
+    }
+
     // CUSTOM DATA
 
     /**
@@ -282,17 +534,68 @@ public class PacketEntity<T extends Entity> implements EntityInLevelCallback {
         return manager;
     }
 
+    /**
+     * Returns the group the entity is a member of.
+     * @return group, null if the entity is not a member of a group
+     */
+    public PacketEntityGroup getGroup() {
+        return this.group;
+    }
+
+    /**
+     * Sets the group the entity is a member of.
+     * @param group group, null if the entity is not a member of a group
+     */
+    void setGroup(PacketEntityGroup group) {
+        this.group = group;
+    }
+
+    // SPATIAL INDEX
+
+    /**
+     * Returns the level the entity is indexed in by the {@link PacketEntitySpatialIndex}.
+     * @return level, null if not indexed
+     */
+    Level getIndexedLevel() {
+        return this.indexedLevel;
+    }
+
+    /**
+     * Returns the section the entity is indexed at by the {@link PacketEntitySpatialIndex}.
+     * @return section ({@link net.minecraft.core.SectionPos#asLong(int, int, int)})
+     */
+    long getIndexedSection() {
+        return this.indexedSection;
+    }
+
+    /**
+     * Sets the indexed section.
+     * @param level level, null if not indexed
+     * @param section section
+     */
+    void setIndexedSection(Level level, long section) {
+        this.indexedLevel = level;
+        this.indexedSection = section;
+    }
+
     // LEVEL CALLBACK
 
     @Override
     public void onMove() {
-        // Currently nothing
+        if (this.manager.getSpatialIndex().update(this)) this.manager.getTracker().onSectionChange(this);
+
+        // group members ride the anchor of the group, the client moves them with the anchor
+        if (this.group != null) {
+            this.positionCodec.setBase(this.entity.trackingPosition());
+            return;
+        }
+
+        this.markMoved();
     }
 
     @Override
     public void onRemove(Entity.RemovalReason removalReason) {
-        this.removeAllPlayers();
-        this.manager.cleanupEntities();
+        this.manager.cleanupEntity(this);
     }
 
 }
@@ -0,0 +1,408 @@
+package net.chaossquad.mclib.packets.packetentity;
+
+import com.mojang.math.Transformation;
+import io.netty.buffer.Unpooled;
+import net.minecraft.network.FriendlyByteBuf;
+import net.minecraft.network.protocol.game.ClientboundSetPassengersPacket;
+import net.minecraft.world.entity.Display;
+import net.minecraft.world.entity.EntityType;
+import net.minecraft.world.phys.Vec3;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.craftbukkit.CraftWorld;
+import org.bukkit.entity.Player;
+import org.joml.Quaternionf;
+import org.joml.Vector3f;
+
+import java.util.*;
+
+/**
+ * A group of display entities that is moved, rotated, shown and hidden as one.<br/>
+ * The group has an invisible anchor entity. All members ride the anchor on the client and are placed by their transformation
+ * (offset to the anchor plus their own transformation), so their entity position is the position of the anchor.
+ * Moving the group only moves the anchor, which is one packet per viewer regardless of the number of members.
+ * Rotating the group updates the transformation of all members, which is sent as one bundle per viewer.<br/>
+ * The viewers of the members are managed by the group, use {@link #addPlayer(Player)} and {@link #removePlayer(Player)} instead of the methods of the members and don't set a view range on members.
+ */
+public final class PacketEntityGroup {
+    private final PacketEntityManager manager;
+    private final PacketEntity<Display.BlockDisplay> anchor;
+    private final Map<PacketEntity<? extends Display>, Member> members;
+    private final Quaternionf rotation;
+
+    /**
+     * Creates a PacketEntityGroup with its anchor at the location.
+     * @param manager manager the anchor is added to
+     * @param location location of the anchor
+     */
+    @SuppressWarnings("unchecked")
+    public PacketEntityGroup(PacketEntityManager manager, Location location) {
+        if (manager == null) throw new IllegalArgumentException("Manager cannot be null");
+        if (location == null || location.getWorld() == null) throw new IllegalArgumentException("Location cannot be null");
+
+        // a block display without block state is invisible
+        Display.BlockDisplay display = new Display.BlockDisplay(EntityType.BLOCK_DISPLAY, ((CraftWorld) location.getWorld()).getHandle());
+        display.setPos(location.getX(), location.getY(), location.getZ());
+        display.setNoGravity(true);
+
+        this.manager = manager;
+        this.anchor = (PacketEntity<Display.BlockDisplay>) manager.addEntity(display);
+        this.members = new LinkedHashMap<>();
+        this.rotation = new Quaternionf();
+    }
+
+    // MEMBERS
+
+    /**
+     * Adds a member to the group.
+     * The current position of the entity becomes its offset to the anchor.
+     * The entity is removed from its current viewers and shown to the viewers of the group.
+     * @param member member
+     * @return true if the member has been added
+     */
+    public boolean addMember(PacketEntity<? extends Display> member) {
+        return this.addMembers(List.of(member)) > 0;
+    }
+
+    /**
+     * Adds multiple members to the group.
+     * The viewers of the group receive all members in one bundle.
+     * @param members members
+     * @return number of added members
+     */
+    public int addMembers(Collection<? extends PacketEntity<? extends Display>> members) {
+        if (this.isRemoved()) return 0;
+
+        List<PacketEntity<? extends Display>> added = new ArrayList<>();
+        Vec3 anchorPosition = this.anchor.getEntity().position();
+
+        for (PacketEntity<? extends Display> member : members) {
+            if (member == null || member.isRemoved() || member == this.anchor) continue;
+            if (member.getGroup() == this) continue;
+            if (member.getGroup() != null) throw new IllegalArgumentException("Entity is already a member of another group");
+            if (member.getEntity().level() != this.anchor.getEntity().level()) throw new IllegalArgumentException("Members must be in the world of the group");
+
+            Vec3 position = member.getEntity().position();
+            Vector3f offset = new Vector3f((float) (position.x - anchorPosition.x), (float) (position.y - anchorPosition.y), (float) (position.z - anchorPosition.z));
+            this.members.put(member, new Member(offset, Display.createTransformation(member.getEntity().getEntityData())));
+            added.add(member);
+        }
+
+        if (added.isEmpty()) return 0;
+
+        List<Player> players = this.getPlayers();
+
+        this.manager.batchPackets(() -> this.manager.batchDespawns(() -> {
+
+            for (PacketEntity<? extends Display> member : added) {
+                member.removeAllPlayers();
+                member.setGroup(this);
+                member.getEntity().setPos(anchorPosition);
+                this.applyTransformation(member, this.members.get(member));
+
+                // the add packet contains the new transformation
+                member.getEntity().getEntityData().packDirty();
+
+                for (Player player : players) {
+                    member.addPlayer(player);
+                }
+
+            }
+
+            this.manager.broadcastPacket(players, this.createPassengersPacket());
+        }));
+
+        return added.size();
+    }
+
+    /**
+     * Removes a member from the group.
+     * The member is placed at its current position in the world with its own transformation and is removed from all viewers.
+     * @param member member
+     * @return true if the entity was a member
+     */
+    public boolean removeMember(PacketEntity<? extends Display> member) {
+        Member info = this.members.remove(member);
+        if (info == null) return false;
+
+        Vector3f offset = this.rotation.transform(new Vector3f(info.offset()));
+        Vec3 position = this.anchor.getEntity().position().add(offset.x, offset.y, offset.z);
+
+        this.manager.batchPackets(() -> this.manager.batchDespawns(() -> {
+            member.removeAllPlayers();
+            member.setGroup(null);
+            member.getEntity().setTransformation(info.transformation());
+            member.getEntity().setPos(position);
+            this.manager.broadcastPacket(this.getPlayers(), this.createPassengersPacket());
+        }));
+
+        return true;
+    }
+
+    /**
+     * Returns the members of the group.
+     * @return list of members
+     */
+    public List<PacketEntity<? extends Display>> getMembers() {
+        this.cleanupMembers();
+        return List.copyOf(this.members.keySet());
+    }
+
+    /**
+     * Returns the offset of a member to the anchor (without the rotation of the group).
+     * @param member member
+     * @return offset, null if the entity is not a member
+     */
+    public Vector3f getOffset(PacketEntity<? extends Display> member) {
+        Member info = this.members.get(member);
+        return info != null ? new Vector3f(info.offset()) : null;
+    }
+
+    /**
+     * Removes members that have been removed.
+     */
+    private void cleanupMembers() {
+        this.members.keySet().removeIf(PacketEntity::isRemoved);
+    }
+
+    // VIEWERS
+
+    /**
+     * Shows the group to a player.
+     * The player receives the anchor, all members and the passengers as one bundle.
+     * @param player player
+     * @return true if the player can see the group
+     */
+    public boolean addPlayer(Player player) {
+        if (this.isRemoved()) return false;
+        this.cleanupMembers();
+
+        this.manager.batchPackets(() -> {
+            if (!this.anchor.addPlayer(player)) return;
+
+            for (PacketEntity<? extends Display> member : this.members.keySet()) {
+                member.addPlayer(player);
+            }
+
+            this.manager.sendPacket(player, this.createPassengersPacket());
+        });
+
+        return this.anchor.hasPlayer(player);
+    }
+
+    /**
+     * Shows the group to multiple players.
+     * @param players players
+     */
+    public void addPlayers(Collection<? extends Player> players) {
+        this.manager.batchPackets(() -> players.forEach(this::addPlayer));
+    }
+
+    /**
+     * Hides the group from a player.
+     * The player receives one remove packet for the anchor and all members.
+     * @param player player
+     */
+    public void removePlayer(Player player) {
+
+        this.manager.batchDespawns(() -> {
+            this.anchor.removePlayer(player);
+
+            for (PacketEntity<? extends Display> member : this.members.keySet()) {
+                member.removePlayer(player);
+            }
+
+        });
+
+    }
+
+    /**
+     * Hides the group from all players.
+     */
+    public void hide() {
+
+        this.manager.batchDespawns(() -> {
+            for (Player player : this.getPlayers()) {
+                this.removePlayer(player);
+            }
+        });
+
+    }
+
+    /**
+     * Returns the players that can see the group.
+     * @return list of players
+     */
+    public List<Player> getPlayers() {
+        return this.anchor.getPlayers();
+    }
+
+    // TRANSFORM
+
+    /**
+     * Moves the group to the location.
+     * @param location location (in the world of the group)
+     */
+    public void teleport(Location location) {
+        World world = this.anchor.getWorld();
+        if (location.getWorld() != null && !location.getWorld().equals(world)) throw new IllegalArgumentException("Groups cannot be moved into another world");
+
+        this.moveTo(new Vec3(location.getX(), location.getY(), location.getZ()));
+    }
+
+    /**
+     * Moves the group relative to its current position.
+     * @param x x
+     * @param y y
+     * @param z z
+     */
+    public void move(double x, double y, double z) {
+        this.moveTo(this.anchor.getEntity().position().add(x, y, z));
+    }
+
+    /**
+     * Moves the anchor and the members and sends the movement of the anchor to the viewers.
+     * @param position position
+     */
+    private void moveTo(Vec3 position) {
+        if (this.isRemoved()) return;
+        this.cleanupMembers();
+
+        this.manager.batchPackets(() -> {
+            this.anchor.getEntity().setPos(position);
+
+            // members are not synced while they ride the anchor
+            for (PacketEntity<? extends Display> member : this.members.keySet()) {
+                member.getEntity().setPos(position);
+            }
+
+            this.anchor.flushUpdates();
+        });
+
+    }
+
+    /**
+     * Rotates all members around the anchor.
+     * The viewers receive the transformations of all members as one bundle.
+     * @param rotation rotation
+     */
+    public void setRotation(Quaternionf rotation) {
+        if (rotation == null) throw new IllegalArgumentException("Rotation cannot be null");
+        if (this.isRemoved()) return;
+        this.cleanupMembers();
+
+        this.rotation.set(rotation);
+
+        this.manager.batchPackets(() -> {
+            for (Map.Entry<PacketEntity<? extends Display>, Member> entry : this.members.entrySet()) {
+                this.applyTransformation(entry.getKey(), entry.getValue());
+                entry.getKey().flushUpdates();
+            }
+        });
+
+    }
+
+    /**
+     * Returns the rotation of the group.
+     * @return rotation
+     */
+    public Quaternionf getRotation() {
+        return new Quaternionf(this.rotation);
+    }
+
+    /**
+     * Sets the transformation of a member to its offset and own transformation, rotated by the rotation of the group.
+     * @param member member
+     * @param info member info
+     */
+    private void applyTransformation(PacketEntity<? extends Display> member, Member info) {
+        Transformation transformation = info.transformation();
+        Vector3f translation = this.rotation.transform(new Vector3f(info.offset()).add(transformation.getTranslation()));
+        Quaternionf leftRotation = new Quaternionf(this.rotation).mul(transformation.getLeftRotation());
+        member.getEntity().setTransformation(new Transformation(translation, leftRotation, transformation.getScale(), transformation.getRightRotation()));
+    }
+
+    /**
+     * Creates the packet that lets all members ride the anchor.<br/>
+     * The only public constructor of the packet reads the passengers of a server-side vehicle,
+     * but the members never ride the anchor on the server (that would fire mount events and tick them as passengers).
+     * So the packet is decoded from its wire layout instead: {@code varint vehicleId, varint passengerCount, varint[passengerCount] passengerIds}.
+     * The decoded packet is checked, so a changed layout fails here instead of on the client.
+     * @return passengers packet
+     */
+    private ClientboundSetPassengersPacket createPassengersPacket() {
+        int vehicle = this.anchor.getEntity().getId();
+        int[] passengers = this.members.keySet().stream().filter(member -> !member.isRemoved()).mapToInt(member -> member.getEntity().getId()).toArray();
+        FriendlyByteBuf buffer = new FriendlyByteBuf(Unpooled.buffer());
+        ClientboundSetPassengersPacket packet;
+
+        try {
+            buffer.writeVarInt(vehicle);
+            buffer.writeVarIntArray(passengers);
+            packet = ClientboundSetPassengersPacket.STREAM_CODEC.decode(buffer);
+        } finally {
+            buffer.release();
+        }
+
+        if (packet.getVehicle() != vehicle || !Arrays.equals(packet.getPassengers(), passengers)) throw new IllegalStateException("Unexpected layout of the passengers packet");
+        return packet;
+    }
+
+    // REMOVE
+
+    /**
+     * Removes the anchor and all members.
+     * Each viewer receives one remove packet.
+     */
+    public void remove() {
+        List<PacketEntity<?>> entities = new ArrayList<>(this.members.keySet());
+        entities.add(this.anchor);
+        this.manager.removeEntities(entities);
+        this.members.clear();
+    }
+
+    /**
+     * Returns true if the group has been removed.
+     * @return removed
+     */
+    public boolean isRemoved() {
+        return this.anchor.isRemoved();
+    }
+
+    // GETTER
+
+    /**
+     * Returns the anchor entity.
+     * @return anchor
+     */
+    public PacketEntity<Display.BlockDisplay> getAnchor() {
+        return this.anchor;
+    }
+
+    /**
+     * Returns the location of the anchor.
+     * @return location
+     */
+    public Location getLocation() {
+        Vec3 position = this.anchor.getEntity().position();
+        return new Location(this.anchor.getWorld(), position.x, position.y, position.z);
+    }
+
+    /**
+     * Returns the manager.
+     * @return manager
+     */
+    public PacketEntityManager getManager() {
+        return this.manager;
+    }
+
+    // MEMBER
+
+    /**
+     * Offset and own transformation of a member.
+     * @param offset offset to the anchor
+     * @param transformation transformation of the member before it has been added to the group
+     */
+    private record Member(Vector3f offset, Transformation transformation) {}
+
+}
@@ -1,6 +1,29 @@
 package net.chaossquad.mclib.packets.packetentity;
 
+import com.destroystokyo.paper.event.player.PlayerPostRespawnEvent;
+import com.destroystokyo.paper.event.server.ServerTickEndEvent;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntLinkedOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectMap;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
+import net.chaossquad.mclib.packets.ConnectionRegistry;
+import net.chaossquad.mclib.packets.EncodedPacket;
+import net.chaossquad.mclib.packets.PacketQueue;
+import net.minecraft.network.protocol.Packet;
+import net.minecraft.network.protocol.game.ClientGamePacketListener;
+import net.minecraft.network.protocol.game.ClientboundRemoveEntitiesPacket;
 import net.minecraft.world.entity.Entity;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.phys.Vec3;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.craftbukkit.CraftWorld;
+import org.bukkit.craftbukkit.entity.CraftPlayer;
+import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
@@ -9,9 +32,18 @@ import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.event.world.WorldUnloadEvent;
 import org.bukkit.plugin.Plugin;
 import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.util.BoundingBox;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.locks.StampedLock;
 
 /**
  * The packet entity manager handles packet entities.
@@ -19,7 +51,22 @@ import java.util.List;
  */
 public class PacketEntityManager implements Listener {
     private final Plugin plugin;
-    private final List<PacketEntity<?>> entities;
+    private final Set<PacketEntity<?>> entities;
+    private final Int2ObjectMap<PacketEntity<?>> entitiesById;
+    private final Reference2ObjectMap<Entity, PacketEntity<?>> entitiesByEntity;
+    private final StampedLock lookupLock;
+    private final Map<UUID, Set<PacketEntity<?>>> viewedEntities;
+    private final Map<UUID, PendingDespawn> pendingDespawns;
+    private int despawnBatchDepth;
+    private final PacketQueue packetQueue;
+    private final PacketEntitySpatialIndex spatialIndex;
+    private final PacketEntityTracker tracker;
+    private final Set<PacketEntity<?>> dirtyEntities;
+    private int updateInterval;
+    private int ticksSinceUpdate;
+    private boolean bundlePackets;
+    private int packetBatchDepth;
+    private boolean preEncodeBroadcasts;
 
     /**
      * Creates a PacketEntityManager.
@@ -27,7 +74,23 @@ public class PacketEntityManager implements Listener {
      */
     public PacketEntityManager(Plugin plugin) {
         this.plugin = plugin;
-        entities = new ArrayList<>();
+        entities = new LinkedHashSet<>();
+        this.entitiesById = new Int2ObjectOpenHashMap<>();
+        this.entitiesByEntity = new Reference2ObjectOpenHashMap<>();
+        this.lookupLock = new StampedLock();
+        this.viewedEntities = new HashMap<>();
+        this.pendingDespawns = new LinkedHashMap<>();
+        this.despawnBatchDepth = 0;
+        this.packetQueue = new PacketQueue();
+        this.spatialIndex = new PacketEntitySpatialIndex();
+        this.tracker = new PacketEntityTracker(this);
+        this.dirtyEntities = new LinkedHashSet<>();
+        this.updateInterval = 1;
+        this.ticksSinceUpdate = 0;
+        this.bundlePackets = false;
+        this.packetBatchDepth = 0;
+        this.preEncodeBroadcasts = false;
+        ConnectionRegistry.getInstance().register(this.plugin);
 
         new BukkitRunnable() {
             @Override
@@ -47,15 +110,26 @@ public class PacketEntityManager implements Listener {
      */
     public void cleanupEntities() {
 
-        for (PacketEntity<?> entity : List.copyOf(this.entities)) {
-
-            if (entity.isRemoved()) {
-                entity.removeAllPlayers();
-                this.entities.remove(entity);
+        this.batchDespawns(() -> {
+            for (PacketEntity<?> entity : List.copyOf(this.entities)) {
+                if (entity.isRemoved()) this.cleanupEntity(entity);
             }
+        });
 
-        }
+    }
 
+    /**
+     * Removes a removed packet entity from the manager.
+     * @param entity packet entity
+     */
+    void cleanupEntity(PacketEntity<?> entity) {
+        entity.removeAllPlayers();
+        if (!this.entities.remove(entity)) return;
+
+        this.removeLookup(entity);
+        this.spatialIndex.remove(entity);
+        this.tracker.untrack(entity);
+        this.dirtyEntities.remove(entity);
     }
 
     /**
@@ -72,6 +146,8 @@ public class PacketEntityManager implements Listener {
 
     /**
      * Updates all PacketEntities for the players.
+     * Removes entities of unloaded worlds and adds entities with unsent entity data changes to the dirty queue,
+     * which catches changes that have been made without {@link PacketEntity#markDirty()}.
      */
     public void updateEntities() {
 
@@ -84,7 +160,7 @@ public class PacketEntityManager implements Listener {
             }
 
             if (entity.getEntity().getEntityData().isDirty()) {
-                entity.sendEntityData();
+                entity.markDirty();
             }
 
         }
@@ -94,35 +170,54 @@ public class PacketEntityManager implements Listener {
     // EVENTS
 
     /**
-     * Cleanup players when the player has left the server.
+     * Removes the player from the packet entities it has been viewing when the player has left the server.
      * @param event event
      */
     @EventHandler(priority = EventPriority.MONITOR)
     public void onPlayerQuit(PlayerQuitEvent event) {
-        new BukkitRunnable() {
+        this.tracker.removePlayer(event.getPlayer().getUniqueId());
 
-            @Override
-            public void run() {
-                PacketEntityManager.this.cleanupPlayers();
-            }
+        Set<PacketEntity<?>> viewed = this.viewedEntities.remove(event.getPlayer().getUniqueId());
+        if (viewed == null) return;
+
+        for (PacketEntity<?> entity : List.copyOf(viewed)) {
+            entity.forgetPlayer(event.getPlayer());
+        }
 
-        }.runTaskLater(this.plugin, 1);
     }
 
     /**
-     * Remove packet entities when the player has changed the world.
+     * Updates the tracked viewers, the dirty packet entities (every {@link #getUpdateInterval()} ticks) and sends the queued packets at the end of the tick.
      * @param event event
      */
     @EventHandler(priority = EventPriority.MONITOR)
-    public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
-        new BukkitRunnable() {
+    public void onServerTickEnd(ServerTickEndEvent event) {
+        this.batchDespawns(this.tracker::tick);
 
-            @Override
-            public void run() {
-                PacketEntityManager.this.cleanupPlayers();
-            }
+        if (++this.ticksSinceUpdate >= this.updateInterval) {
+            this.ticksSinceUpdate = 0;
+            this.flushDirtyEntities();
+        }
 
-        }.runTaskLater(this.plugin, 1);
+        this.packetQueue.flush();
+    }
+
+    /**
+     * Removes the player from the packet entities of the previous world when the player has changed the world.
+     * @param event event
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerChangedWorld(PlayerChangedWorldEvent event) {
+        this.refreshViewer(event.getPlayer(), false);
+    }
+
+    /**
+     * Spawns the packet entities again for a player that has respawned, because the client discards all entities on respawn.
+     * @param event event
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerPostRespawn(PlayerPostRespawnEvent event) {
+        this.refreshViewer(event.getPlayer(), true);
     }
 
     /**
@@ -151,6 +246,109 @@ public class PacketEntityManager implements Listener {
         return this.plugin;
     }
 
+    /**
+     * Sends a packet of a packet entity to the player.
+     * If packet bundling is enabled, the packet is queued and sent with the other packets of the tick as a bundle.
+     * Inside of {@link #batchPackets(Runnable)}, the packet is sent with the other packets of the batch as a bundle.
+     * @param player player
+     * @param packet packet
+     */
+    public void sendPacket(Player player, Packet<? super ClientGamePacketListener> packet) {
+
+        if (this.bundlePackets || this.packetBatchDepth > 0) {
+            this.packetQueue.add(player, packet);
+            return;
+        }
+
+        ((CraftPlayer) player).getHandle().connection.send(packet);
+    }
+
+    /**
+     * Sends the same packet of a packet entity to multiple players.
+     * The packet is only created once by the caller and shared between the players.
+     * If pre-encoding is enabled (and bundling is disabled), the packet is also only serialized once, see {@link EncodedPacket}.
+     * @param players players
+     * @param packet packet
+     */
+    public void broadcastPacket(Collection<? extends Player> players, Packet<? super ClientGamePacketListener> packet) {
+        if (players.isEmpty()) return;
+
+        if (this.preEncodeBroadcasts && !this.bundlePackets && this.packetBatchDepth <= 0 && players.size() > 1) {
+            EncodedPacket encoded = EncodedPacket.encode(packet);
+
+            try {
+                encoded.send(players);
+            } finally {
+                encoded.release();
+            }
+
+            return;
+        }
+
+        for (Player player : players) {
+            this.sendPacket(player, packet);
+        }
+
+    }
+
+    /**
+     * Runs an operation and sends all packets of packet entities sent during it as one bundle per player at the end of the operation.
+     * The client applies the packets of a bundle in the same frame.
+     * Batches can be nested, the packets are sent when the outermost batch ends.
+     * If packet bundling is enabled, the packets are sent at the end of the tick instead.
+     * @param operation operation
+     */
+    public void batchPackets(Runnable operation) {
+        this.packetBatchDepth++;
+
+        try {
+            operation.run();
+        } finally {
+            if (--this.packetBatchDepth == 0 && !this.bundlePackets) this.packetQueue.flush();
+        }
+
+    }
+
+    /**
+     * Returns true if the packets of packet entities are bundled.
+     * @return bundle packets
+     */
+    public boolean isBundlePackets() {
+        return this.bundlePackets;
+    }
+
+    /**
+     * Enables or disables packet bundling.<br/>
+     * When enabled, the packets of packet entities are collected during the tick and sent as one bundle per player at the end of the tick.
+     * This makes large spawns arrive atomically and reduces the number of writes and flushes.
+     * Queued packets are sent immediately when bundling is disabled.
+     * @param bundlePackets bundle packets
+     */
+    public void setBundlePackets(boolean bundlePackets) {
+        this.bundlePackets = bundlePackets;
+        if (!bundlePackets && this.packetBatchDepth <= 0) this.packetQueue.flush();
+    }
+
+    /**
+     * Returns true if broadcast packets are serialized once for all players.
+     * @return pre-encode broadcasts
+     */
+    public boolean isPreEncodeBroadcasts() {
+        return this.preEncodeBroadcasts;
+    }
+
+    /**
+     * Enables or disables pre-encoding of broadcast packets.<br/>
+     * When enabled, packets that are sent to multiple players are serialized once and the bytes are written to every player.
+     * Pre-encoded packets bypass the packet listeners of the {@link net.chaossquad.mclib.packets.packetevents.PacketPipeline}
+     * and are sent with the next flush of the connection, see {@link EncodedPacket}.
+     * Has no effect while packet bundling is enabled.
+     * @param preEncodeBroadcasts pre-encode broadcasts
+     */
+    public void setPreEncodeBroadcasts(boolean preEncodeBroadcasts) {
+        this.preEncodeBroadcasts = preEncodeBroadcasts;
+    }
+
     /**
      * Returns a list of all available packet entities.
      * @return list of packet entities
@@ -168,39 +366,59 @@ public class PacketEntityManager implements Listener {
 
     /**
      * Removes all packet entities.
+     * Each player receives one remove packet for all entities.
      */
     public void removeAll() {
+        this.removeEntities(List.copyOf(this.entities));
+    }
 
-        for (PacketEntity<?> entity : List.copyOf(this.entities)) {
-            entity.remove();
-        }
+    /**
+     * Removes the packet entities.
+     * Each player receives one remove packet for all entities it has been viewing.
+     * @param entities packet entities
+     */
+    public void removeEntities(Collection<? extends PacketEntity<?>> entities) {
 
-        this.cleanupEntities();
+        this.batchDespawns(() -> {
+            for (PacketEntity<?> entity : entities) {
+                entity.remove();
+            }
+        });
 
     }
 
     /**
      * Searches for the {@link PacketEntity} which manages the entity with the specified id.
+     * The lookup is constant-time and can be used from any thread (e.g. from packet listeners).
      * @param id entity id
      * @return PacketEntity
      */
     public PacketEntity<?> getPacketEntityFromId(int id) {
-        for (PacketEntity<?> packetEntity : this.entities) {
-            if (packetEntity.getEntity().getId() == id) return packetEntity;
+        long stamp = this.lookupLock.readLock();
+
+        try {
+            return this.entitiesById.get(id);
+        } finally {
+            this.lookupLock.unlockRead(stamp);
         }
-        return null;
+
     }
 
     /**
      * Searches for the {@link PacketEntity} that is managing the specified entity.
+     * The lookup is constant-time and can be used from any thread.
      * @param entity nms entity
      * @return PacketEntity
      */
     public PacketEntity<?> getPacketEntityFromEntity(Entity entity) {
-        for (PacketEntity<?> packetEntity : this.entities) {
-            if (packetEntity.getEntity().equals(entity)) return packetEntity;
+        long stamp = this.lookupLock.readLock();
+
+        try {
+            return this.entitiesByEntity.get(entity);
+        } finally {
+            this.lookupLock.unlockRead(stamp);
         }
-        return null;
+
     }
 
     /**
@@ -212,7 +430,275 @@ public class PacketEntityManager implements Listener {
         if (entity == null || entity.isRemoved()) return null;
         PacketEntity<?> packetEntity = new PacketEntity<>(this, entity);
         this.entities.add(packetEntity);
+        this.addLookup(packetEntity);
+        this.spatialIndex.add(packetEntity);
         return packetEntity;
     }
 
+    /**
+     * Adds a packet entity to the id and entity lookups.
+     * @param entity packet entity
+     */
+    private void addLookup(PacketEntity<?> entity) {
+        long stamp = this.lookupLock.writeLock();
+
+        try {
+            this.entitiesById.put(entity.getEntity().getId(), entity);
+            this.entitiesByEntity.put(entity.getEntity(), entity);
+        } finally {
+            this.lookupLock.unlockWrite(stamp);
+        }
+
+    }
+
+    /**
+     * Removes a packet entity from the id and entity lookups.
+     * @param entity packet entity
+     */
+    private void removeLookup(PacketEntity<?> entity) {
+        long stamp = this.lookupLock.writeLock();
+
+        try {
+            this.entitiesById.remove(entity.getEntity().getId(), entity);
+            this.entitiesByEntity.remove(entity.getEntity(), entity);
+        } finally {
+            this.lookupLock.unlockWrite(stamp);
+        }
+
+    }
+
+    // VIEWERS
+
+    /**
+     * Adds a packet entity to the entities viewed by the player.
+     * @param player player
+     * @param entity packet entity
+     */
+    void addViewer(Player player, PacketEntity<?> entity) {
+        this.viewedEntities.computeIfAbsent(player.getUniqueId(), uuid -> new ReferenceOpenHashSet<>()).add(entity);
+    }
+
+    /**
+     * Removes a packet entity from the entities viewed by the player.
+     * @param player player
+     * @param entity packet entity
+     */
+    void removeViewer(Player player, PacketEntity<?> entity) {
+        Set<PacketEntity<?>> viewed = this.viewedEntities.get(player.getUniqueId());
+        if (viewed == null) return;
+
+        viewed.remove(entity);
+        if (viewed.isEmpty()) this.viewedEntities.remove(player.getUniqueId());
+    }
+
+    /**
+     * Updates the packet entities viewed by a player after the client has discarded its entities.
+     * Only the packet entities of the player are touched.
+     * Entities that are not in the world of the player anymore are removed without a remove packet,
+     * the others are spawned again if respawn is set.
+     * @param player player
+     * @param respawn spawn the remaining entities again
+     */
+    private void refreshViewer(Player player, boolean respawn) {
+        Set<PacketEntity<?>> viewed = this.viewedEntities.get(player.getUniqueId());
+        if (viewed == null) return;
+
+        Level level = ((CraftPlayer) player).getHandle().level();
+
+        for (PacketEntity<?> entity : List.copyOf(viewed)) {
+
+            if (entity.isRemoved() || entity.getEntity().level() != level) {
+                entity.forgetPlayer(player);
+            } else if (respawn) {
+                entity.respawnFor(player);
+            }
+
+        }
+
+    }
+
+    /**
+     * Returns the packet entities the player is currently a viewer of.
+     * @param player player
+     * @return list of packet entities
+     */
+    public List<PacketEntity<?>> getViewedEntities(Player player) {
+        Set<PacketEntity<?>> viewed = this.viewedEntities.get(player.getUniqueId());
+        return viewed != null ? List.copyOf(viewed) : List.of();
+    }
+
+    // DESPAWNS
+
+    /**
+     * Runs an operation and collects the entity removals of all players during it.
+     * At the end of the operation, each player receives one remove packet that contains all entities removed for that player.
+     * Batches can be nested, the removals are sent when the outermost batch ends.
+     * @param operation operation
+     */
+    public void batchDespawns(Runnable operation) {
+        this.despawnBatchDepth++;
+
+        try {
+            operation.run();
+        } finally {
+            if (--this.despawnBatchDepth == 0) this.flushDespawns();
+        }
+
+    }
+
+    /**
+     * Removes an entity from the client of a player.
+     * Inside of {@link #batchDespawns(Runnable)}, the removal is collected and sent at the end of the batch.
+     * @param player player
+     * @param entityId entity id
+     */
+    void despawn(Player player, int entityId) {
+
+        if (this.despawnBatchDepth <= 0) {
+            this.sendPacket(player, new ClientboundRemoveEntitiesPacket(entityId));
+            return;
+        }
+
+        this.pendingDespawns.computeIfAbsent(player.getUniqueId(), uuid -> new PendingDespawn(player)).entityIds.add(entityId);
+    }
+
+    /**
+     * Cancels a collected removal of an entity that is spawned again for the player in the same batch.
+     * @param player player
+     * @param entityId entity id
+     */
+    void cancelDespawn(Player player, int entityId) {
+        if (this.pendingDespawns.isEmpty()) return;
+
+        PendingDespawn pending = this.pendingDespawns.get(player.getUniqueId());
+        if (pending != null) pending.entityIds.remove(entityId);
+    }
+
+    /**
+     * Sends the collected entity removals.
+     */
+    private void flushDespawns() {
+        if (this.pendingDespawns.isEmpty()) return;
+
+        List<PendingDespawn> pending = List.copyOf(this.pendingDespawns.values());
+        this.pendingDespawns.clear();
+
+        for (PendingDespawn despawn : pending) {
+            if (despawn.entityIds.isEmpty() || !despawn.player.isOnline()) continue;
+            this.sendPacket(despawn.player, new ClientboundRemoveEntitiesPacket(new IntArrayList(despawn.entityIds)));
+        }
+
+    }
+
+    /**
+     * Entity removals of a player collected during a batch.
+     * @param player player
+     * @param entityIds entity ids
+     */
+    private record PendingDespawn(Player player, IntSet entityIds) {
+
+        private PendingDespawn(Player player) {
+            this(player, new IntLinkedOpenHashSet());
+        }
+
+    }
+
+    // UPDATES
+
+    /**
+     * Adds a packet entity to the dirty queue.
+     * @param entity entity
+     */
+    void markDirty(PacketEntity<?> entity) {
+        this.dirtyEntities.add(entity);
+    }
+
+    /**
+     * Sends the movement and entity data changes of all packet entities in the dirty queue to their viewers.
+     * Called automatically every {@link #getUpdateInterval()} ticks.
+     */
+    public void flushDirtyEntities() {
+        if (this.dirtyEntities.isEmpty()) return;
+
+        List<PacketEntity<?>> dirty = List.copyOf(this.dirtyEntities);
+        this.dirtyEntities.clear();
+
+        for (PacketEntity<?> entity : dirty) {
+            if (entity.isRemoved()) continue;
+            entity.flushUpdates();
+        }
+
+    }
+
+    /**
+     * Returns the number of packet entities in the dirty queue.
+     * @return dirty entities
+     */
+    public int getDirtyEntityCount() {
+        return this.dirtyEntities.size();
+    }
+
+    /**
+     * Returns the interval in which the dirty packet entities are updated.
+     * @return interval in ticks
+     */
+    public int getUpdateInterval() {
+        return this.updateInterval;
+    }
+
+    /**
+     * Sets the interval in which the dirty packet entities are updated.
+     * Changes within the interval are combined into one update.
+     * @param updateInterval interval in ticks (at least 1)
+     */
+    public void setUpdateInterval(int updateInterval) {
+        if (updateInterval < 1) throw new IllegalArgumentException("Update interval must be at least 1 tick");
+        this.updateInterval = updateInterval;
+    }
+
+    // SPATIAL QUERIES
+
+    /**
+     * Returns all packet entities within the radius around the location.
+     * Only the chunk sections overlapping the radius are searched.
+     * @param center center (including world)
+     * @param radius radius
+     * @return list of packet entities
+     */
+    public List<PacketEntity<?>> getEntitiesInRadius(Location center, double radius) {
+        if (center.getWorld() == null) return List.of();
+        List<PacketEntity<?>> list = this.spatialIndex.getInRadius(((CraftWorld) center.getWorld()).getHandle(), new Vec3(center.getX(), center.getY(), center.getZ()), radius);
+        list.removeIf(PacketEntity::isRemoved);
+        return list;
+    }
+
+    /**
+     * Returns all packet entities within the box.
+     * Only the chunk sections overlapping the box are searched.
+     * @param world world
+     * @param box box
+     * @return list of packet entities
+     */
+    public List<PacketEntity<?>> getEntitiesInBox(World world, BoundingBox box) {
+        List<PacketEntity<?>> list = this.spatialIndex.getInBox(((CraftWorld) world).getHandle(), box.getMinX(), box.getMinY(), box.getMinZ(), box.getMaxX(), box.getMaxY(), box.getMaxZ());
+        list.removeIf(PacketEntity::isRemoved);
+        return list;
+    }
+
+    /**
+     * Returns the spatial index of the packet entities.
+     * @return spatial index
+     */
+    public PacketEntitySpatialIndex getSpatialIndex() {
+        return this.spatialIndex;
+    }
+
+    /**
+     * Returns the viewer tracker of the packet entities.
+     * @return tracker
+     */
+    public PacketEntityTracker getTracker() {
+        return this.tracker;
+    }
+
 }
@@ -0,0 +1,213 @@
+package net.chaossquad.mclib.packets.packetentity;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
+import net.minecraft.core.SectionPos;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.phys.Vec3;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * Spatial index of the packet entities of a {@link PacketEntityManager}.<br/>
+ * Entities are stored per world in a grid of chunk sections (16x16x16 blocks).
+ * The index is updated by the {@link PacketEntity} when its entity moves into another section,
+ * so range queries only visit the sections that overlap the queried area instead of all entities.<br/>
+ * The index is not thread-safe and is only accessed from the main thread.
+ */
+public final class PacketEntitySpatialIndex {
+    private final Map<Level, Long2ObjectMap<Set<PacketEntity<?>>>> worlds;
+    private int size;
+
+    PacketEntitySpatialIndex() {
+        this.worlds = new IdentityHashMap<>();
+        this.size = 0;
+    }
+
+    // UPDATE
+
+    /**
+     * Adds an entity at the section of its current position.
+     * @param entity entity
+     */
+    void add(PacketEntity<?> entity) {
+        Level level = entity.getEntity().level();
+        long section = SectionPos.asLong(entity.getEntity().blockPosition());
+
+        this.worlds.computeIfAbsent(level, l -> new Long2ObjectOpenHashMap<>()).computeIfAbsent(section, s -> new ReferenceOpenHashSet<>()).add(entity);
+        entity.setIndexedSection(level, section);
+        this.size++;
+    }
+
+    /**
+     * Removes an entity from the section it has been indexed at.
+     * @param entity entity
+     */
+    void remove(PacketEntity<?> entity) {
+        Level level = entity.getIndexedLevel();
+        if (level == null) return;
+
+        Long2ObjectMap<Set<PacketEntity<?>>> sections = this.worlds.get(level);
+
+        if (sections != null) {
+            Set<PacketEntity<?>> set = sections.get(entity.getIndexedSection());
+
+            if (set != null && set.remove(entity)) {
+                this.size--;
+                if (set.isEmpty()) sections.remove(entity.getIndexedSection());
+                if (sections.isEmpty()) this.worlds.remove(level);
+            }
+
+        }
+
+        entity.setIndexedSection(null, 0);
+    }
+
+    /**
+     * Moves an entity to the section of its current position if it has changed.
+     * @param entity entity
+     * @return true if the entity has moved into another section
+     */
+    boolean update(PacketEntity<?> entity) {
+        if (entity.getIndexedLevel() == null) return false;
+
+        Level level = entity.getEntity().level();
+        long section = SectionPos.asLong(entity.getEntity().blockPosition());
+        if (level == entity.getIndexedLevel() && section == entity.getIndexedSection()) return false;
+
+        this.remove(entity);
+        this.add(entity);
+        return true;
+    }
+
+    // QUERIES
+
+    /**
+     * Returns all entities whose position is within the radius around the center.
+     * @param level level
+     * @param center center
+     * @param radius radius
+     * @return list of entities
+     */
+    public List<PacketEntity<?>> getInRadius(Level level, Vec3 center, double radius) {
+        List<PacketEntity<?>> result = new ArrayList<>();
+        double radiusSquared = radius * radius;
+
+        this.visit(level, center.x - radius, center.y - radius, center.z - radius, center.x + radius, center.y + radius, center.z + radius, entity -> {
+            if (entity.getEntity().position().distanceToSqr(center) <= radiusSquared) result.add(entity);
+        });
+
+        return result;
+    }
+
+    /**
+     * Returns all entities whose position is within the box.
+     * @param level level
+     * @param minX min x
+     * @param minY min y
+     * @param minZ min z
+     * @param maxX max x
+     * @param maxY max y
+     * @param maxZ max z
+     * @return list of entities
+     */
+    public List<PacketEntity<?>> getInBox(Level level, double minX, double minY, double minZ, double maxX, double maxY, double maxZ) {
+        List<PacketEntity<?>> result = new ArrayList<>();
+
+        this.visit(level, minX, minY, minZ, maxX, maxY, maxZ, entity -> {
+            Vec3 pos = entity.getEntity().position();
+            if (pos.x >= minX && pos.x <= maxX && pos.y >= minY && pos.y <= maxY && pos.z >= minZ && pos.z <= maxZ) result.add(entity);
+        });
+
+        return result;
+    }
+
+    /**
+     * Calls the visitor for every entity in the sections that overlap the box.
+     * If the box covers more sections than the world has occupied sections, the occupied sections are iterated instead.
+     * @param level level
+     * @param minX min x
+     * @param minY min y
+     * @param minZ min z
+     * @param maxX max x
+     * @param maxY max y
+     * @param maxZ max z
+     * @param visitor visitor
+     */
+    private void visit(Level level, double minX, double minY, double minZ, double maxX, double maxY, double maxZ, Consumer<PacketEntity<?>> visitor) {
+        Long2ObjectMap<Set<PacketEntity<?>>> sections = this.worlds.get(level);
+        if (sections == null) return;
+
+        int minSectionX = SectionPos.blockToSectionCoord(minX);
+        int minSectionY = SectionPos.blockToSectionCoord(minY);
+        int minSectionZ = SectionPos.blockToSectionCoord(minZ);
+        int maxSectionX = SectionPos.blockToSectionCoord(maxX);
+        int maxSectionY = SectionPos.blockToSectionCoord(maxY);
+        int maxSectionZ = SectionPos.blockToSectionCoord(maxZ);
+
+        long volume = (long) (maxSectionX - minSectionX + 1) * (maxSectionY - minSectionY + 1) * (maxSectionZ - minSectionZ + 1);
+
+        if (volume > sections.size()) {
+
+            for (Long2ObjectMap.Entry<Set<PacketEntity<?>>> entry : sections.long2ObjectEntrySet()) {
+                long section = entry.getLongKey();
+                int x = SectionPos.x(section);
+                int y = SectionPos.y(section);
+                int z = SectionPos.z(section);
+                if (x < minSectionX || x > maxSectionX || y < minSectionY || y > maxSectionY || z < minSectionZ || z > maxSectionZ) continue;
+                entry.getValue().forEach(visitor);
+            }
+
+            return;
+        }
+
+        for (int x = minSectionX; x <= maxSectionX; x++) {
+            for (int y = minSectionY; y <= maxSectionY; y++) {
+                for (int z = minSectionZ; z <= maxSectionZ; z++) {
+                    Set<PacketEntity<?>> set = sections.get(SectionPos.asLong(x, y, z));
+                    if (set != null) set.forEach(visitor);
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Returns the entities in the section.
+     * @param level level
+     * @param sectionX section x
+     * @param sectionY section y
+     * @param sectionZ section z
+     * @return list of entities
+     */
+    public List<PacketEntity<?>> getInSection(Level level, int sectionX, int sectionY, int sectionZ) {
+        Long2ObjectMap<Set<PacketEntity<?>>> sections = this.worlds.get(level);
+        if (sections == null) return List.of();
+
+        Set<PacketEntity<?>> set = sections.get(SectionPos.asLong(sectionX, sectionY, sectionZ));
+        return set != null ? List.copyOf(set) : List.of();
+    }
+
+    // GETTER
+
+    /**
+     * Returns the number of indexed entities.
+     * @return size
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Returns the number of occupied sections in the level.
+     * @param level level
+     * @return sections
+     */
+    public int getSectionCount(Level level) {
+        Long2ObjectMap<Set<PacketEntity<?>>> sections = this.worlds.get(level);
+        return sections != null ? sections.size() : 0;
+    }
+
+}
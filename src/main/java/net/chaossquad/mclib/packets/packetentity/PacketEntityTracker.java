@@ -0,0 +1,223 @@
+package net.chaossquad.mclib.packets.packetentity;
+
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
+import net.minecraft.server.level.ServerLevel;
+import net.minecraft.server.level.ServerPlayer;
+import net.minecraft.world.level.Level;
+import net.minecraft.world.phys.Vec3;
+import org.bukkit.craftbukkit.entity.CraftPlayer;
+import org.bukkit.entity.Player;
+
+import java.util.*;
+
+/**
+ * Adds and removes the viewers of packet entities depending on their distance.<br/>
+ * Tracking is enabled per entity with {@link PacketEntity#setViewRange(double)}.
+ * Once per tick, the tracker re-evaluates only the players that have entered another chunk since the last pass,
+ * using the {@link PacketEntitySpatialIndex} to find the entities around them.
+ * Tracked entities that have moved into another section are re-evaluated against the players of their world.
+ * So the cost scales with movement and not with the number of entities times the number of players.<br/>
+ * Viewers added by the tracker are also removed by it. Viewers can still be added manually with {@link PacketEntity#addPlayer(Player)}.
+ */
+public final class PacketEntityTracker {
+    private final PacketEntityManager manager;
+    private final Set<PacketEntity<?>> entities;
+    private final Set<PacketEntity<?>> moved;
+    private final Map<UUID, PlayerState> players;
+    private double maxViewRange;
+    private boolean maxViewRangeDirty;
+
+    PacketEntityTracker(PacketEntityManager manager) {
+        this.manager = manager;
+        this.entities = new ReferenceOpenHashSet<>();
+        this.moved = new ReferenceOpenHashSet<>();
+        this.players = new HashMap<>();
+        this.maxViewRange = 0;
+        this.maxViewRangeDirty = false;
+    }
+
+    // ENTITIES
+
+    /**
+     * Starts tracking the entity or updates its view range.
+     * @param entity entity
+     */
+    void track(PacketEntity<?> entity) {
+        this.entities.add(entity);
+        this.moved.add(entity);
+        this.maxViewRangeDirty = true;
+    }
+
+    /**
+     * Stops tracking the entity.
+     * The viewers of the entity are not removed.
+     * @param entity entity
+     */
+    void untrack(PacketEntity<?> entity) {
+        if (!this.entities.remove(entity)) return;
+        this.moved.remove(entity);
+        this.maxViewRangeDirty = true;
+
+        for (PlayerState state : this.players.values()) {
+            state.viewing.remove(entity);
+        }
+
+    }
+
+    /**
+     * Called when a packet entity has moved into another section.
+     * @param entity entity
+     */
+    void onSectionChange(PacketEntity<?> entity) {
+        if (this.entities.contains(entity)) this.moved.add(entity);
+    }
+
+    /**
+     * Called when a player has been removed from the viewers of a packet entity.
+     * The tracker stops treating the player as a viewer, so the entity is added again by the next evaluation that finds the player in range
+     * (the player entering another chunk or the entity moving into another section).
+     * @param entity entity
+     * @param player player
+     */
+    void onViewerRemoved(PacketEntity<?> entity, Player player) {
+        PlayerState state = this.players.get(player.getUniqueId());
+        if (state != null) state.viewing.remove(entity);
+    }
+
+    /**
+     * Forgets the state of a player that has left the server.
+     * @param uuid player uuid
+     */
+    void removePlayer(UUID uuid) {
+        this.players.remove(uuid);
+    }
+
+    // TICK
+
+    /**
+     * Re-evaluates the players that have entered another chunk and the tracked entities that have moved into another section.
+     */
+    public void tick() {
+        if (this.entities.isEmpty() && this.players.isEmpty()) return;
+
+        if (this.maxViewRangeDirty) {
+            this.maxViewRange = 0;
+            for (PacketEntity<?> entity : this.entities) {
+                this.maxViewRange = Math.max(this.maxViewRange, entity.getViewRange());
+            }
+            this.maxViewRangeDirty = false;
+        }
+
+        for (Player player : this.manager.getPlugin().getServer().getOnlinePlayers()) {
+            ServerPlayer handle = ((CraftPlayer) player).getHandle();
+            Level level = handle.level();
+            long chunk = handle.chunkPosition().toLong();
+
+            PlayerState state = this.players.computeIfAbsent(player.getUniqueId(), uuid -> new PlayerState());
+            if (state.level == level && state.chunk == chunk) continue;
+
+            state.level = level;
+            state.chunk = chunk;
+            this.evaluatePlayer(player, handle, state);
+        }
+
+        if (this.moved.isEmpty()) return;
+
+        for (PacketEntity<?> entity : List.copyOf(this.moved)) {
+            this.evaluateEntity(entity);
+        }
+
+        this.moved.clear();
+    }
+
+    /**
+     * Updates the tracked entities of a player that has entered another chunk.
+     * @param player player
+     * @param handle nms player
+     * @param state tracking state of the player
+     */
+    private void evaluatePlayer(Player player, ServerPlayer handle, PlayerState state) {
+        Level level = handle.level();
+        Vec3 position = handle.position();
+
+        Iterator<PacketEntity<?>> iterator = state.viewing.iterator();
+        while (iterator.hasNext()) {
+            PacketEntity<?> entity = iterator.next();
+            if (!entity.isRemoved() && isInRange(entity, level, position)) continue;
+
+            iterator.remove();
+            entity.removePlayer(player);
+        }
+
+        if (this.entities.isEmpty()) return;
+
+        for (PacketEntity<?> entity : this.manager.getSpatialIndex().getInRadius(level, position, this.maxViewRange)) {
+            if (entity.isRemoved() || !this.entities.contains(entity) || state.viewing.contains(entity)) continue;
+            if (!isInRange(entity, level, position)) continue;
+            if (entity.addPlayer(player)) state.viewing.add(entity);
+        }
+
+    }
+
+    /**
+     * Updates the viewers of a tracked entity that has moved into another section.
+     * @param entity entity
+     */
+    private void evaluateEntity(PacketEntity<?> entity) {
+        if (entity.isRemoved() || !this.entities.contains(entity)) return;
+        if (!(entity.getEntity().level() instanceof ServerLevel level)) return;
+
+        for (ServerPlayer handle : level.players()) {
+            PlayerState state = this.players.get(handle.getUUID());
+            if (state == null) continue; // evaluated when the player is seen by the next tick
+
+            boolean inRange = isInRange(entity, level, handle.position());
+            boolean viewing = state.viewing.contains(entity);
+
+            if (inRange && !viewing) {
+                if (entity.addPlayer(handle.getBukkitEntity())) state.viewing.add(entity);
+            } else if (!inRange && viewing) {
+                state.viewing.remove(entity);
+                entity.removePlayer(handle.getBukkitEntity());
+            }
+
+        }
+
+    }
+
+    private static boolean isInRange(PacketEntity<?> entity, Level level, Vec3 position) {
+        double range = entity.getViewRange();
+        return range > 0 && entity.getEntity().level() == level && entity.getEntity().position().distanceToSqr(position) <= range * range;
+    }
+
+    // GETTER
+
+    /**
+     * Returns the number of tracked entities.
+     * @return tracked entities
+     */
+    public int getTrackedEntityCount() {
+        return this.entities.size();
+    }
+
+    /**
+     * Returns true if the entity is tracked.
+     * @param entity entity
+     * @return tracked
+     */
+    public boolean isTracked(PacketEntity<?> entity) {
+        return this.entities.contains(entity);
+    }
+
+    // STATE
+
+    /**
+     * Chunk of a player at the last evaluation and the tracked entities the player currently sees.
+     */
+    private static final class PlayerState {
+        private final Set<PacketEntity<?>> viewing = new ReferenceOpenHashSet<>();
+        private Level level;
+        private long chunk;
+    }
+
+}
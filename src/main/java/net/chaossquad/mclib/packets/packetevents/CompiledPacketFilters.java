@@ -0,0 +1,76 @@
+package net.chaossquad.mclib.packets.packetevents;
+
+import net.minecraft.network.protocol.Packet;
+import org.bukkit.entity.Player;
+
+import java.util.function.Predicate;
+
+/**
+ * The {@link PacketFilter}s of a listener array, compiled for one channel.
+ * Created and cached by the {@link PacketChannelHandler}.
+ */
+final class CompiledPacketFilters {
+    static final int OVERFLOW_BIT = 63;
+    private final Predicate<Packet<?>>[] predicates;
+
+    private CompiledPacketFilters(Predicate<Packet<?>>[] predicates) {
+        this.predicates = predicates;
+    }
+
+    /**
+     * Compiles the filters of the listeners.
+     * @param listeners listeners
+     * @param player player of the channel, null if unknown
+     * @return compiled filters
+     */
+    @SuppressWarnings("unchecked")
+    static CompiledPacketFilters compile(RegisteredPacketListener<?>[] listeners, Player player) {
+        Predicate<Packet<?>>[] predicates = new Predicate[listeners.length];
+
+        for (int i = 0; i < listeners.length; i++) {
+            PacketFilter<?> filter = listeners[i].getFilter();
+            predicates[i] = filter != null ? filter.compile(player) : null;
+        }
+
+        return new CompiledPacketFilters(predicates);
+    }
+
+    /**
+     * Evaluates the filter of every listener once.
+     * The result is passed to {@link PacketListenerRegistry#callListeners(RegisteredPacketListener[], CompiledPacketFilters, long, PacketEvent)},
+     * so the filters are not evaluated again when the listeners are called.
+     * Listeners from index {@value #OVERFLOW_BIT} on share the last bit, which is set if any of them wants the packet.
+     * @param packet packet
+     * @return bitmask with the bit of every listener that wants the packet set, 0 if no listener wants the packet
+     */
+    long match(Packet<?> packet) {
+        long matches = 0;
+
+        for (int i = 0; i < this.predicates.length; i++) {
+            Predicate<Packet<?>> predicate = this.predicates[i];
+            if (predicate != null && !predicate.test(packet)) continue;
+
+            if (i >= OVERFLOW_BIT) return matches | (1L << OVERFLOW_BIT);
+            matches |= 1L << i;
+        }
+
+        return matches;
+    }
+
+    /**
+     * Returns true if the listener at the specified index wants the packet.
+     * @param matches result of {@link #match(Packet)}
+     * @param index listener index
+     * @param packet packet
+     * @return listener wants the packet
+     */
+    boolean isMatch(long matches, int index, Packet<?> packet) {
+        if (index < OVERFLOW_BIT) return (matches & (1L << index)) != 0;
+        if ((matches & (1L << OVERFLOW_BIT)) == 0) return false;
+
+        // the listeners that share the last bit are evaluated again
+        Predicate<Packet<?>> predicate = this.predicates[index];
+        return predicate == null || predicate.test(packet);
+    }
+
+}
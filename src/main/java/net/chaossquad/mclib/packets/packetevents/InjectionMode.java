@@ -0,0 +1,21 @@
+package net.chaossquad.mclib.packets.packetevents;
+
+/**
+ * Defines when the {@link PacketPipeline} injects its handler into a channel.
+ */
+public enum InjectionMode {
+
+    /**
+     * The handler is injected when the player has joined.
+     * Handshake, status, login and configuration packets are not passed to listeners.
+     */
+    PLAYER_JOIN,
+
+    /**
+     * The handler is injected by the server's channel initializer when the connection is created.
+     * All packets of the connection are passed to listeners.
+     * Packets that are sent or received before the player has entered the play phase have no player ({@link PacketEvent#getPlayer()} returns null).
+     */
+    CHANNEL_INIT
+
+}
@@ -0,0 +1,116 @@
+package net.chaossquad.mclib.packets.packetevents;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds.
+ * Bucket {@code i} counts durations in {@code [2^(i-1), 2^i)}, so percentiles are accurate to a factor of two.
+ */
+public final class LatencyHistogram {
+    private static final int BUCKETS = 64;
+    private final AtomicLongArray buckets;
+    private final LongAdder count;
+    private final LongAdder totalNanos;
+    private final AtomicLong maxNanos;
+
+    /**
+     * Creates a LatencyHistogram.
+     */
+    public LatencyHistogram() {
+        this.buckets = new AtomicLongArray(BUCKETS);
+        this.count = new LongAdder();
+        this.totalNanos = new LongAdder();
+        this.maxNanos = new AtomicLong();
+    }
+
+    /**
+     * Records a duration.
+     * @param nanos duration in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        this.buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos)));
+        this.count.increment();
+        this.totalNanos.add(nanos);
+        this.maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * Resets the histogram.
+     */
+    public void reset() {
+
+        for (int i = 0; i < BUCKETS; i++) {
+            this.buckets.set(i, 0);
+        }
+
+        this.count.reset();
+        this.totalNanos.reset();
+        this.maxNanos.set(0);
+    }
+
+    // VALUES
+
+    /**
+     * Returns the number of recorded durations.
+     * @return count
+     */
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    /**
+     * Returns the sum of all recorded durations.
+     * @return total nanoseconds
+     */
+    public long getTotalNanos() {
+        return this.totalNanos.sum();
+    }
+
+    /**
+     * Returns the mean duration.
+     * @return mean nanoseconds, 0 if nothing has been recorded
+     */
+    public long getMeanNanos() {
+        long count = this.getCount();
+        return count > 0 ? this.getTotalNanos() / count : 0;
+    }
+
+    /**
+     * Returns the longest recorded duration.
+     * @return max nanoseconds
+     */
+    public long getMaxNanos() {
+        return this.maxNanos.get();
+    }
+
+    /**
+     * Returns the upper bound of the bucket containing the specified percentile.
+     * @param percentile percentile (0-100)
+     * @return nanoseconds
+     */
+    public long getPercentileNanos(double percentile) {
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = this.buckets.get(i);
+            total += counts[i];
+        }
+
+        if (total == 0) return 0;
+
+        long threshold = (long) Math.ceil(total * Math.max(0, Math.min(100, percentile)) / 100.0);
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= threshold && counts[i] > 0) return i == 0 ? 0 : Math.min(1L << Math.min(62, i), this.getMaxNanos());
+        }
+
+        return this.getMaxNanos();
+    }
+
+}
@@ -0,0 +1,291 @@
+package net.chaossquad.mclib.packets.packetevents;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.UUID;
+
+/**
+ * Records the raw frames of one connection into a bounded off-heap ring buffer.<br/>
+ * Every record contains a timestamp, the direction, the protocol phase and the uncompressed frame (packet id and payload).
+ * When the buffer is full, the oldest records are overwritten.
+ * The frames are copied as they pass the channel, so no packets are encoded for capturing.<br/>
+ * Captures are started with {@link PacketPipeline#startCapture(org.bukkit.entity.Player, int)} and written to disk with {@link #dump(Path)}.
+ *
+ * <h2>File format</h2>
+ * All numbers are big endian. A file starts with the magic {@code MCPC} and a short version ({@link #FORMAT_VERSION}).
+ * Each dump appends one session:
+ * <pre>
+ * session: long uuidMost, long uuidLeast, long startEpochMillis, int protocolVersion, int recordCount, record[recordCount]
+ * record:  byte direction (0 = clientbound, 1 = serverbound), byte protocol (ConnectionProtocol ordinal, -1 if unknown),
+ *          varlong microsSincePreviousRecord, varint length, byte[length] frame
+ * </pre>
+ */
+public final class PacketCapture {
+    /**
+     * Magic at the start of capture files.
+     */
+    public static final int MAGIC = 0x4D435043; // MCPC
+    /**
+     * Version of the capture file format.
+     */
+    public static final short FORMAT_VERSION = 1;
+    private static final int RECORD_HEADER = Integer.BYTES + Long.BYTES + 2;
+    private final UUID uuid;
+    private final int protocolVersion;
+    private final ByteBuffer buffer;
+    private final long startEpochMillis;
+    private final long startNanos;
+    private int head;
+    private int tail;
+    private int used;
+    private int records;
+    private long dropped;
+
+    /**
+     * Creates a PacketCapture.
+     * @param uuid uuid of the captured player
+     * @param protocolVersion protocol version of the server
+     * @param capacity capacity of the ring buffer in bytes
+     */
+    public PacketCapture(UUID uuid, int protocolVersion, int capacity) {
+        if (capacity < RECORD_HEADER) throw new IllegalArgumentException("Capacity too small");
+        this.uuid = uuid;
+        this.protocolVersion = protocolVersion;
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+        this.startEpochMillis = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+        this.head = 0;
+        this.tail = 0;
+        this.used = 0;
+        this.records = 0;
+        this.dropped = 0;
+    }
+
+    // RECORDING
+
+    /**
+     * Records a frame.
+     * Frames that are larger than the buffer are counted as dropped.
+     * @param direction direction
+     * @param protocol protocol ordinal, -1 if unknown
+     * @param frame frame (the reader index is not modified)
+     */
+    public synchronized void record(PacketDirection direction, int protocol, ByteBuf frame) {
+        int length = frame.readableBytes();
+        int size = RECORD_HEADER + length;
+
+        if (size > this.buffer.capacity()) {
+            this.dropped++;
+            return;
+        }
+
+        while (this.buffer.capacity() - this.used < size) {
+            this.evictOldest();
+        }
+
+        this.putInt(length);
+        this.putLong(System.nanoTime() - this.startNanos);
+        this.putByte((byte) direction.ordinal());
+        this.putByte((byte) protocol);
+
+        int first = Math.min(length, this.buffer.capacity() - this.tail);
+        this.buffer.limit(this.tail + first).position(this.tail);
+        frame.getBytes(frame.readerIndex(), this.buffer);
+
+        if (first < length) {
+            this.buffer.limit(length - first).position(0);
+            frame.getBytes(frame.readerIndex() + first, this.buffer);
+        }
+
+        this.buffer.clear();
+        this.tail = (this.tail + length) % this.buffer.capacity();
+        this.used += length;
+        this.records++;
+    }
+
+    private void evictOldest() {
+        int length = this.getInt(this.head);
+        int size = RECORD_HEADER + length;
+        this.head = (this.head + size) % this.buffer.capacity();
+        this.used -= size;
+        this.records--;
+        this.dropped++;
+    }
+
+    // DUMP
+
+    /**
+     * Appends the current contents of the buffer as one session to the specified file.
+     * The header is written if the file is empty.
+     * The buffer is not cleared.
+     * @param file file
+     * @throws IOException if writing fails
+     */
+    public void dump(Path file) throws IOException {
+        ByteBuffer out;
+
+        synchronized (this) {
+            out = ByteBuffer.allocate(Long.BYTES * 3 + Integer.BYTES * 2 + this.used + this.records * 8);
+            out.putLong(this.uuid.getMostSignificantBits());
+            out.putLong(this.uuid.getLeastSignificantBits());
+            out.putLong(this.startEpochMillis);
+            out.putInt(this.protocolVersion);
+            out.putInt(this.records);
+
+            int position = this.head;
+            long previousNanos = 0;
+
+            for (int i = 0; i < this.records; i++) {
+                int length = this.getInt(position);
+                long nanos = this.getLong((position + Integer.BYTES) % this.buffer.capacity());
+                int direction = this.buffer.get((position + Integer.BYTES + Long.BYTES) % this.buffer.capacity());
+                int protocol = this.buffer.get((position + Integer.BYTES + Long.BYTES + 1) % this.buffer.capacity());
+
+                out.put((byte) direction);
+                out.put((byte) protocol);
+                writeVarLong(out, Math.max(0, (nanos - previousNanos) / 1000));
+                writeVarInt(out, length);
+
+                int start = (position + RECORD_HEADER) % this.buffer.capacity();
+                for (int j = 0; j < length; j++) {
+                    out.put(this.buffer.get((start + j) % this.buffer.capacity()));
+                }
+
+                previousNanos = nanos;
+                position = (position + RECORD_HEADER + length) % this.buffer.capacity();
+            }
+
+            out.flip();
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(Integer.BYTES + Short.BYTES);
+                header.putInt(MAGIC).putShort(FORMAT_VERSION).flip();
+                while (header.hasRemaining()) channel.write(header);
+            }
+
+            while (out.hasRemaining()) channel.write(out);
+        }
+
+    }
+
+    /**
+     * Removes all records from the buffer.
+     */
+    public synchronized void clear() {
+        this.head = 0;
+        this.tail = 0;
+        this.used = 0;
+        this.records = 0;
+    }
+
+    // GETTER
+
+    /**
+     * Returns the uuid of the captured player.
+     * @return uuid
+     */
+    public UUID getUuid() {
+        return this.uuid;
+    }
+
+    /**
+     * Returns the capacity of the ring buffer.
+     * @return capacity in bytes
+     */
+    public int getCapacity() {
+        return this.buffer.capacity();
+    }
+
+    /**
+     * Returns the number of bytes currently used.
+     * @return used bytes
+     */
+    public synchronized int getUsed() {
+        return this.used;
+    }
+
+    /**
+     * Returns the number of records in the buffer.
+     * @return records
+     */
+    public synchronized int getRecords() {
+        return this.records;
+    }
+
+    /**
+     * Returns the number of records that have been overwritten or were too large.
+     * @return dropped records
+     */
+    public synchronized long getDropped() {
+        return this.dropped;
+    }
+
+    // BUFFER
+
+    private void putByte(byte value) {
+        this.buffer.put(this.tail, value);
+        this.tail = (this.tail + 1) % this.buffer.capacity();
+        this.used++;
+    }
+
+    private void putInt(int value) {
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            this.putByte((byte) (value >>> shift));
+        }
+    }
+
+    private void putLong(long value) {
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            this.putByte((byte) (value >>> shift));
+        }
+    }
+
+    private int getInt(int position) {
+        int value = 0;
+
+        for (int i = 0; i < Integer.BYTES; i++) {
+            value = (value << 8) | (this.buffer.get((position + i) % this.buffer.capacity()) & 0xFF);
+        }
+
+        return value;
+    }
+
+    private long getLong(int position) {
+        long value = 0;
+
+        for (int i = 0; i < Long.BYTES; i++) {
+            value = (value << 8) | (this.buffer.get((position + i) % this.buffer.capacity()) & 0xFF);
+        }
+
+        return value;
+    }
+
+    private static void writeVarInt(ByteBuffer out, int value) {
+
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        out.put((byte) value);
+    }
+
+    private static void writeVarLong(ByteBuffer out, long value) {
+
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        out.put((byte) value);
+    }
+
+}
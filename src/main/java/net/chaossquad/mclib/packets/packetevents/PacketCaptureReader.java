@@ -0,0 +1,121 @@
+package net.chaossquad.mclib.packets.packetevents;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Reads capture files written by {@link PacketCapture#dump(Path)}.
+ */
+public final class PacketCaptureReader {
+
+    private PacketCaptureReader() {}
+
+    /**
+     * Reads all sessions of a capture file.
+     * @param file file
+     * @return list of sessions in the order they have been dumped
+     * @throws IOException if the file cannot be read or is not a capture file
+     */
+    public static List<Session> read(Path file) throws IOException {
+        List<Session> sessions = new ArrayList<>();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+
+            if (in.readInt() != PacketCapture.MAGIC) throw new IOException("Not a packet capture file");
+            short version = in.readShort();
+            if (version != PacketCapture.FORMAT_VERSION) throw new IOException("Unsupported capture format version " + version);
+
+            while (true) {
+                long uuidMost;
+
+                try {
+                    uuidMost = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                UUID uuid = new UUID(uuidMost, in.readLong());
+                long startEpochMillis = in.readLong();
+                int protocolVersion = in.readInt();
+                int recordCount = in.readInt();
+
+                List<Record> records = new ArrayList<>(recordCount);
+                long micros = 0;
+
+                for (int i = 0; i < recordCount; i++) {
+                    int directionOrdinal = in.readByte();
+                    if (directionOrdinal < 0 || directionOrdinal >= PacketDirection.values().length) throw new IOException("Invalid direction " + directionOrdinal + " in record " + i);
+
+                    PacketDirection direction = PacketDirection.values()[directionOrdinal];
+                    int protocol = in.readByte();
+                    micros += readVarLong(in);
+
+                    int length = readVarInt(in);
+                    if (length < 0) throw new IOException("Invalid frame length " + length + " in record " + i);
+
+                    byte[] frame = new byte[length];
+                    in.readFully(frame);
+                    records.add(new Record(direction, protocol, micros, frame));
+                }
+
+                sessions.add(new Session(uuid, startEpochMillis, protocolVersion, List.copyOf(records)));
+            }
+
+        }
+
+        return List.copyOf(sessions);
+    }
+
+    private static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        byte b;
+
+        do {
+            if (shift >= 32) throw new IOException("VarInt too big");
+            b = in.readByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        return value;
+    }
+
+    private static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        byte b;
+
+        do {
+            if (shift >= 64) throw new IOException("VarLong too big");
+            b = in.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        return value;
+    }
+
+    /**
+     * One dumped capture.
+     * @param uuid uuid of the captured player
+     * @param startEpochMillis time the capture has been started
+     * @param protocolVersion protocol version of the server
+     * @param records records
+     */
+    public record Session(UUID uuid, long startEpochMillis, int protocolVersion, List<Record> records) {}
+
+    /**
+     * One captured frame.
+     * @param direction direction
+     * @param protocol ordinal of the protocol phase, -1 if unknown
+     * @param micros microseconds since the capture has been started
+     * @param frame uncompressed frame (packet id and payload)
+     */
+    public record Record(PacketDirection direction, int protocol, long micros, byte[] frame) {}
+
+}
@@ -0,0 +1,156 @@
+package net.chaossquad.mclib.packets.packetevents;
+
+import net.chaossquad.mclib.PlayerUtils;
+import net.chaossquad.mclib.command.TabCompletingCommandExecutor;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * A command which manages packet captures of the {@link PacketPipeline}.
+ * Dumps are appended to {@code captures/<player uuid>.mcpc} in the data folder of the plugin.
+ * The capture buffer is allocated off-heap, its capacity is limited to {@value #MAX_CAPACITY_KB} kb per player.
+ */
+public class PacketCaptureSubcommand implements TabCompletingCommandExecutor {
+    private static final int DEFAULT_CAPACITY_KB = 1024;
+    /**
+     * Maximum capacity of a capture started by the command in kb.
+     */
+    public static final int MAX_CAPACITY_KB = 64 * 1024;
+    private final Plugin plugin;
+    private final String permission;
+
+    /**
+     * Creates a PacketCaptureSubcommand.
+     * @param plugin plugin
+     * @param permission permission
+     */
+    public PacketCaptureSubcommand(Plugin plugin, String permission) {
+        this.plugin = plugin;
+        this.permission = permission;
+    }
+
+    @Override
+    public boolean onCommand(CommandSender sender, Command cmd, String label, String[] args) {
+
+        if (sender != this.plugin.getServer().getConsoleSender() && !sender.hasPermission(this.permission)) {
+            sender.sendMessage("§cNo permission");
+            return true;
+        }
+
+        if (args.length < 2) {
+            sender.sendMessage("§cUsage: [...] packetcapture start/stop/dump/info <player> [capacity kb]");
+            return true;
+        }
+
+        Player player = PlayerUtils.getPlayerFromString(args[1]);
+        if (player == null) {
+            sender.sendMessage("§cPlayer does not exist");
+            return true;
+        }
+
+        PacketPipeline pipeline = PacketPipeline.getInstance();
+
+        try {
+
+            switch (args[0]) {
+                case "start" -> {
+
+                    int capacity = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_CAPACITY_KB;
+                    if (capacity <= 0 || capacity > MAX_CAPACITY_KB) {
+                        sender.sendMessage("§cCapacity must be between 1 and " + MAX_CAPACITY_KB + " kb");
+                        return true;
+                    }
+
+                    PacketCapture capture = pipeline.startCapture(player, capacity * 1024);
+
+                    if (capture == null) {
+                        sender.sendMessage("§cPacket handler is not injected for this player");
+                        return true;
+                    }
+
+                    sender.sendMessage("§aCapturing " + player.getName() + " (" + (capture.getCapacity() / 1024) + " kb)");
+                }
+                case "stop" -> {
+                    PacketCapture capture = pipeline.stopCapture(player);
+                    sender.sendMessage(capture != null ? "§aCapture stopped" : "§cPlayer is not captured");
+                }
+                case "dump" -> {
+
+                    PacketCapture capture = pipeline.getCapture(player);
+                    if (capture == null) {
+                        sender.sendMessage("§cPlayer is not captured");
+                        return true;
+                    }
+
+                    Path file = this.plugin.getDataFolder().toPath().resolve("captures").resolve(player.getUniqueId() + ".mcpc");
+
+                    this.plugin.getServer().getScheduler().runTaskAsynchronously(this.plugin, () -> {
+
+                        String message;
+
+                        try {
+                            Files.createDirectories(file.getParent());
+                            capture.dump(file);
+                            message = "§aCapture dumped to " + file;
+                        } catch (IOException e) {
+                            message = "§cFailed to dump capture: " + e.getMessage();
+                        }
+
+                        // command senders are not thread-safe
+                        String result = message;
+                        this.plugin.getServer().getScheduler().runTask(this.plugin, () -> sender.sendMessage(result));
+                    });
+
+                }
+                case "info" -> {
+
+                    PacketCapture capture = pipeline.getCapture(player);
+                    if (capture == null) {
+                        sender.sendMessage("§7Player is not captured");
+                        return true;
+                    }
+
+                    sender.sendMessage("§7§lCapture " + player.getName() + ":§r\n" +
+                            "§7records: " + capture.getRecords() + "\n" +
+                            "§7used: " + (capture.getUsed() / 1024) + "/" + (capture.getCapacity() / 1024) + " kb\n" +
+                            "§7dropped: " + capture.getDropped()
+                    );
+
+                }
+                default -> sender.sendMessage("§cUnknown subcommand");
+            }
+
+        } catch (IllegalArgumentException e) {
+            sender.sendMessage("§cIllegal argument");
+        }
+
+        return true;
+    }
+
+    @Override
+    public List<String> onTabComplete(CommandSender sender, Command cmd, String label, String[] args) {
+
+        return switch (args.length) {
+            case 1 -> List.of("start", "stop", "dump", "info");
+            case 2 -> this.plugin.getServer().getOnlinePlayers().stream().map(Player::getName).toList();
+            default -> List.of();
+        };
+
+    }
+
+    /**
+     * Returns the plugin.
+     * @return plugin
+     */
+    public Plugin getPlugin() {
+        return plugin;
+    }
+
+}
@@ -0,0 +1,557 @@
+package net.chaossquad.mclib.packets.packetevents;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.ReferenceCountUtil;
+import net.minecraft.network.Connection;
+import net.minecraft.network.PacketListener;
+import net.minecraft.network.chat.Component;
+import net.minecraft.network.protocol.Packet;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.network.ServerCommonPacketListenerImpl;
+import net.minecraft.server.network.ServerGamePacketListenerImpl;
+import org.bukkit.entity.Player;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The duplex handler that is injected once into each channel by the {@link PacketPipeline}.
+ * Passes every packet in both directions to the pipeline.
+ * Owns one reusable event object per direction, which is handed out by {@link #acquireEvent(PacketDirection, Player, Packet)}.
+ * Serverbound packets are rate limited by the {@link PacketRateLimiter} of the pipeline before they are dispatched.
+ * Packets with async listeners are held in a queue per direction until the listeners have returned.
+ * All following packets of that direction are queued behind them, so the order of the packets is preserved.
+ * All calls happen on the channel's event loop, so no synchronization is needed.
+ */
+final class PacketChannelHandler extends ChannelDuplexHandler {
+    private static final int MAX_COMPILED_FILTERS = 256;
+    private static final int MAX_BUCKETS = 256;
+    private final PacketPipeline pipeline;
+    private final Connection connection;
+    private final PacketEvent clientboundEvent;
+    private final PacketEvent serverboundEvent;
+    private boolean clientboundEventInUse;
+    private boolean serverboundEventInUse;
+    private final RawFrame clientboundFrame;
+    private final RawFrame serverboundFrame;
+    private boolean clientboundFrameInUse;
+    private boolean serverboundFrameInUse;
+    private int inboundFrameBytes;
+    private PacketTypeMetrics outboundMetrics;
+    private volatile PacketCapture capture;
+    private volatile Player player;
+    private final ArrayDeque<HeldPacket> heldInbound;
+    private final ArrayDeque<HeldPacket> heldOutbound;
+    private final Map<RegisteredPacketListener<?>[], CompiledPacketFilters> filters;
+    private final Map<PacketRateLimiter.Limit, PacketRateLimiter.Bucket> buckets;
+    private boolean kicked;
+    private ChannelHandlerContext ctx;
+
+    PacketChannelHandler(PacketPipeline pipeline, Connection connection, Player player) {
+        this.pipeline = pipeline;
+        this.connection = connection;
+        this.clientboundEvent = PacketEvent.create(PacketDirection.CLIENTBOUND, null, null);
+        this.serverboundEvent = PacketEvent.create(PacketDirection.SERVERBOUND, null, null);
+        this.clientboundEventInUse = false;
+        this.serverboundEventInUse = false;
+        this.clientboundFrame = new RawFrame();
+        this.serverboundFrame = new RawFrame();
+        this.clientboundFrameInUse = false;
+        this.serverboundFrameInUse = false;
+        this.inboundFrameBytes = 0;
+        this.outboundMetrics = null;
+        this.capture = null;
+        this.player = player;
+        this.heldInbound = new ArrayDeque<>();
+        this.heldOutbound = new ArrayDeque<>();
+        this.filters = new IdentityHashMap<>();
+        this.buckets = new IdentityHashMap<>();
+        this.kicked = false;
+        this.ctx = null;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.ctx = ctx;
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) {
+        // forward everything that is still held, ignoring pending async listeners
+        this.releaseHeld(true);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        this.discardHeld();
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        long delay = 0;
+
+        PacketRateLimiter limiter = this.pipeline.getRateLimiter();
+        if (limiter != null && msg instanceof Packet<?> packet) {
+            delay = this.rateLimit(limiter, packet);
+
+            if (delay < 0) {
+                ReferenceCountUtil.release(msg);
+                return;
+            }
+
+        }
+
+        Object result = this.pipeline.dispatch(this, PacketDirection.SERVERBOUND, msg);
+        if (result == null) return;
+
+        if (this.hold(this.heldInbound, PacketDirection.SERVERBOUND, result, null, delay)) return;
+        super.channelRead(ctx, result);
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+
+        try {
+            Object result = this.pipeline.dispatch(this, PacketDirection.CLIENTBOUND, msg);
+
+            if (result == null) {
+                promise.trySuccess();
+                return;
+            }
+
+            if (this.hold(this.heldOutbound, PacketDirection.CLIENTBOUND, result, promise, 0)) return;
+            super.write(ctx, result, promise);
+        } finally {
+            // the encoder writes the frame during super.write, later frames (held or pre-encoded packets) must not be counted to this packet
+            this.outboundMetrics = null;
+        }
+
+    }
+
+    // ASYNC
+
+    /**
+     * Holds the message if it has async listeners, has to be delayed or if there are already held messages in the queue.
+     * @param queue queue of the direction
+     * @param direction direction
+     * @param msg message after the sync listeners
+     * @param promise write promise, null for reads
+     * @param delayNanos time the message has to be held at least, 0 for no delay
+     * @return true if the message has been held
+     */
+    private boolean hold(ArrayDeque<HeldPacket> queue, PacketDirection direction, Object msg, ChannelPromise promise, long delayNanos) {
+        CompletableFuture<PacketEvent> future = msg instanceof Packet<?> packet ? this.pipeline.dispatchAsync(this, direction, packet) : null;
+        if (future == null && delayNanos <= 0 && queue.isEmpty()) return false;
+
+        if (delayNanos > 0) {
+            CompletableFuture<PacketEvent> delay = new CompletableFuture<>();
+            this.ctx.executor().schedule(() -> delay.complete(null), delayNanos, TimeUnit.NANOSECONDS);
+            future = future != null ? future.thenCombine(delay, (event, ignored) -> event) : delay;
+        }
+
+        queue.add(new HeldPacket(msg, promise, future));
+
+        if (future != null) {
+            ChannelHandlerContext ctx = this.ctx;
+            future.whenComplete((event, throwable) -> ctx.executor().execute(() -> this.releaseHeld(false)));
+        }
+
+        return true;
+    }
+
+    /**
+     * Forwards the held messages from the head of the queues whose async listeners have completed.
+     * @param force forward all messages, even if their listeners have not completed yet
+     */
+    private void releaseHeld(boolean force) {
+        ChannelHandlerContext ctx = this.ctx;
+        if (ctx == null) return;
+
+        boolean written = false;
+
+        while (!this.heldOutbound.isEmpty() && (force || this.heldOutbound.peek().isDone())) {
+            HeldPacket held = this.heldOutbound.poll();
+            Object result = held.result();
+
+            if (result == null) {
+                held.promise().trySuccess();
+                continue;
+            }
+
+            PacketMetrics metrics = this.pipeline.getMetrics();
+            this.outboundMetrics = metrics.isEnabled() && result instanceof Packet<?> packet ? metrics.getOrCreate(PacketDirection.CLIENTBOUND, packet.getClass()) : null;
+
+            try {
+                ctx.write(result, held.promise());
+            } finally {
+                this.outboundMetrics = null;
+            }
+
+            written = true;
+        }
+
+        if (written) ctx.flush();
+
+        while (!this.heldInbound.isEmpty() && (force || this.heldInbound.peek().isDone())) {
+            Object result = this.heldInbound.poll().result();
+            if (result != null) ctx.fireChannelRead(result);
+        }
+
+    }
+
+    /**
+     * Drops all held messages because the channel has been closed.
+     */
+    private void discardHeld() {
+        HeldPacket held;
+
+        while ((held = this.heldOutbound.poll()) != null) {
+            ReferenceCountUtil.release(held.msg());
+            held.promise().tryFailure(new ClosedChannelException());
+        }
+
+        while ((held = this.heldInbound.poll()) != null) {
+            ReferenceCountUtil.release(held.msg());
+        }
+
+    }
+
+    /**
+     * Returns true if there are packets held for async listeners.
+     * @return has held packets
+     */
+    boolean hasHeldPackets() {
+        return !this.heldInbound.isEmpty() || !this.heldOutbound.isEmpty();
+    }
+
+    // EVENTS
+
+    /**
+     * Returns the reusable event of the specified direction, reset to the player and packet.
+     * If the event is currently in use (a listener caused another packet in the same direction), a new event is created.
+     * @param direction direction
+     * @param player player
+     * @param packet packet
+     * @return event
+     */
+    PacketEvent acquireEvent(PacketDirection direction, Player player, Packet<?> packet) {
+
+        if (direction == PacketDirection.CLIENTBOUND) {
+            if (this.clientboundEventInUse) return PacketEvent.create(direction, player, packet);
+            this.clientboundEventInUse = true;
+            this.clientboundEvent.reset(player, packet);
+            return this.clientboundEvent;
+        } else {
+            if (this.serverboundEventInUse) return PacketEvent.create(direction, player, packet);
+            this.serverboundEventInUse = true;
+            this.serverboundEvent.reset(player, packet);
+            return this.serverboundEvent;
+        }
+
+    }
+
+    /**
+     * Releases an event acquired by {@link #acquireEvent(PacketDirection, Player, Packet)}.
+     * @param event event
+     */
+    void releaseEvent(PacketEvent event) {
+
+        if (event == this.clientboundEvent) {
+            event.reset(null, null);
+            this.clientboundEventInUse = false;
+        } else if (event == this.serverboundEvent) {
+            event.reset(null, null);
+            this.serverboundEventInUse = false;
+        }
+
+    }
+
+    // RATE LIMIT
+
+    /**
+     * Takes a token from the bucket of the packet.
+     * @param limiter rate limiter
+     * @param packet serverbound packet
+     * @return 0 if the packet can pass, the nanoseconds the packet has to be delayed, or -1 if the packet has to be dropped
+     */
+    private long rateLimit(PacketRateLimiter limiter, Packet<?> packet) {
+        PacketRateLimiter.Limit limit = limiter.getLimit(packet.getClass());
+        if (limit == null) return 0;
+
+        PacketRateLimiter.Bucket bucket = this.buckets.get(limit);
+
+        if (bucket == null) {
+            // buckets of replaced limits are never requested again
+            if (this.buckets.size() >= MAX_BUCKETS) this.buckets.clear();
+            bucket = new PacketRateLimiter.Bucket(limit);
+            this.buckets.put(limit, bucket);
+        }
+
+        long delay = bucket.take();
+
+        if (delay > 0) {
+            limiter.record(RateLimitPolicy.DELAY);
+            return delay;
+        }
+
+        if (delay == 0) return 0;
+
+        if (limit.policy() == RateLimitPolicy.KICK) {
+            if (!this.kicked) {
+                this.kicked = true;
+                limiter.record(RateLimitPolicy.KICK);
+                this.kick();
+            }
+        } else {
+            limiter.record(RateLimitPolicy.DROP);
+        }
+
+        return -1;
+    }
+
+    /**
+     * Disconnects the player because of exceeding a rate limit.
+     * Like vanilla, the player is kicked through the packet listener on the main thread, so the client receives the disconnect packet and the kick event is called.
+     * Connections without a common packet listener (login) are closed directly.
+     */
+    private void kick() {
+        this.ctx.channel().config().setAutoRead(false);
+        Component reason = Component.translatable("disconnect.exceeded_packet_rate");
+
+        if (this.connection != null && this.connection.getPacketListener() instanceof ServerCommonPacketListenerImpl listener) {
+            MinecraftServer.getServer().execute(() -> listener.disconnect(reason));
+            return;
+        }
+
+        if (this.connection != null) {
+            this.connection.disconnect(reason);
+        } else {
+            this.ctx.close();
+        }
+
+    }
+
+    // FILTERS
+
+    /**
+     * Returns the filters of the listener array compiled for this channel.
+     * The listener arrays are cached by the registries, so the compiled filters are looked up by identity.
+     * @param listeners listeners from {@link PacketListenerRegistry#getListeners(PacketDirection, Class)}
+     * @return compiled filters
+     */
+    CompiledPacketFilters getFilters(RegisteredPacketListener<?>[] listeners) {
+        CompiledPacketFilters filters = this.filters.get(listeners);
+        if (filters != null) return filters;
+
+        // arrays of old registry snapshots are never requested again
+        if (this.filters.size() >= MAX_COMPILED_FILTERS) this.filters.clear();
+
+        filters = CompiledPacketFilters.compile(listeners, this.getPlayer());
+        this.filters.put(listeners, filters);
+        return filters;
+    }
+
+    // FRAMES
+
+    /**
+     * Called by the inbound frame handler before the frame is decoded into a packet.
+     * @param frame frame
+     * @return true if the frame should be forwarded, false if it has been dropped by a raw frame listener
+     */
+    boolean onInboundFrame(ByteBuf frame) {
+        PacketCapture capture = this.capture;
+        if (capture != null) capture.record(PacketDirection.SERVERBOUND, this.getProtocol(), frame);
+
+        if (!this.pipeline.dispatchFrame(this, PacketDirection.SERVERBOUND, frame)) {
+            this.inboundFrameBytes = 0;
+            return false;
+        }
+
+        this.inboundFrameBytes = frame.readableBytes();
+        return true;
+    }
+
+    /**
+     * Called by the outbound frame handler after a packet has been encoded.
+     * @param frame frame
+     * @return true if the frame should be forwarded, false if it has been dropped by a raw frame listener
+     */
+    boolean onOutboundFrame(ByteBuf frame) {
+        PacketTypeMetrics metrics = this.outboundMetrics;
+        if (metrics != null) metrics.recordBytes(frame.readableBytes());
+
+        PacketCapture capture = this.capture;
+        if (capture != null) capture.record(PacketDirection.CLIENTBOUND, this.getProtocol(), frame);
+
+        return this.pipeline.dispatchFrame(this, PacketDirection.CLIENTBOUND, frame);
+    }
+
+    /**
+     * Returns the reusable raw frame of the specified direction, reset to the frame.
+     * If the raw frame is currently in use, a new one is created.
+     * @param direction direction
+     * @param protocol protocol ordinal
+     * @param buffer frame buffer
+     * @param packetId packet id
+     * @param payloadStart index of the first byte after the packet id
+     * @return raw frame
+     */
+    RawFrame acquireFrame(PacketDirection direction, int protocol, ByteBuf buffer, int packetId, int payloadStart) {
+        RawFrame frame;
+
+        if (direction == PacketDirection.CLIENTBOUND) {
+            frame = this.clientboundFrameInUse ? new RawFrame() : this.clientboundFrame;
+            this.clientboundFrameInUse = true;
+        } else {
+            frame = this.serverboundFrameInUse ? new RawFrame() : this.serverboundFrame;
+            this.serverboundFrameInUse = true;
+        }
+
+        frame.reset(this.getPlayer(), direction, protocol, buffer, packetId, payloadStart);
+        return frame;
+    }
+
+    /**
+     * Releases a raw frame acquired by {@link #acquireFrame(PacketDirection, int, ByteBuf, int, int)}.
+     * @param frame raw frame
+     */
+    void releaseFrame(RawFrame frame) {
+
+        if (frame == this.clientboundFrame) {
+            frame.reset(null, null, -1, null, -1, 0);
+            this.clientboundFrameInUse = false;
+        } else if (frame == this.serverboundFrame) {
+            frame.reset(null, null, -1, null, -1, 0);
+            this.serverboundFrameInUse = false;
+        }
+
+    }
+
+    /**
+     * Returns the ordinal of the current protocol phase of the connection.
+     * @return protocol ordinal, -1 if unknown
+     */
+    int getProtocol() {
+        if (this.connection == null) return -1;
+        PacketListener listener = this.connection.getPacketListener();
+        return listener != null ? listener.protocol().ordinal() : -1;
+    }
+
+    /**
+     * Returns the size of the last inbound frame and resets it.
+     * @return bytes, 0 if unknown
+     */
+    int takeInboundFrameBytes() {
+        int bytes = this.inboundFrameBytes;
+        this.inboundFrameBytes = 0;
+        return bytes;
+    }
+
+    /**
+     * Sets the metrics the frames of the packet that is currently written are counted to.
+     * The metrics are cleared when the write has passed the handler.
+     * @param metrics metrics of the packet that is currently written
+     */
+    void setOutboundMetrics(PacketTypeMetrics metrics) {
+        this.outboundMetrics = metrics;
+    }
+
+    // CAPTURE
+
+    /**
+     * Returns the capture of this channel.
+     * @return capture, null if not capturing
+     */
+    PacketCapture getCapture() {
+        return this.capture;
+    }
+
+    /**
+     * Sets the capture of this channel.
+     * @param capture capture, null to stop capturing
+     */
+    void setCapture(PacketCapture capture) {
+        this.capture = capture;
+    }
+
+    // PLAYER
+
+    /**
+     * Returns the player of the channel.
+     * If the handler has been injected before the player existed, the player is resolved once the connection has entered the play phase.
+     * @return player, null if the channel does not belong to a player yet
+     */
+    Player getPlayer() {
+        Player player = this.player;
+        if (player != null || this.connection == null) return player;
+
+        if (this.connection.getPacketListener() instanceof ServerGamePacketListenerImpl listener) {
+            player = listener.getPlayer().getBukkitEntity();
+            this.player = player;
+            this.filters.clear();
+        }
+
+        return player;
+    }
+
+    /**
+     * Returns the connection of the channel.
+     * @return connection, null for channels created by the {@code PacketReplayHarness} of the test fixtures
+     */
+    Connection getConnection() {
+        return this.connection;
+    }
+
+    /**
+     * Sets the player of the channel.
+     * @param player player
+     */
+    void setPlayer(Player player) {
+        this.player = player;
+
+        if (this.ctx != null) {
+            this.ctx.executor().execute(this.filters::clear);
+        } else {
+            this.filters.clear();
+        }
+
+    }
+
+    /**
+     * A message that is held until its async listeners have completed.
+     * @param msg message after the sync listeners
+     * @param promise write promise, null for reads
+     * @param future result of the async listeners, null if the message is only held to preserve the order
+     */
+    private record HeldPacket(Object msg, ChannelPromise promise, CompletableFuture<PacketEvent> future) {
+
+        private boolean isDone() {
+            return this.future == null || this.future.isDone();
+        }
+
+        /**
+         * Returns the message that should be forwarded.
+         * @return message, null if the packet has been cancelled
+         */
+        private Object result() {
+            if (this.future == null || !this.future.isDone() || this.future.isCompletedExceptionally()) return this.msg;
+
+            PacketEvent event = this.future.getNow(null);
+            if (event == null) return this.msg; // timed out or only delayed
+
+            if (event.isCancelled()) return null;
+            if (event.getReplacement() != null) return event.getReplacement();
+            return this.msg;
+        }
+
+    }
+
+}
@@ -0,0 +1,18 @@
+package net.chaossquad.mclib.packets.packetevents;
+
+/**
+ * The direction a packet is travelling in.
+ */
+public enum PacketDirection {
+
+    /**
+     * Packets sent from the server to the player.
+     */
+    CLIENTBOUND,
+
+    /**
+     * Packets received by the server from the player.
+     */
+    SERVERBOUND
+
+}
@@ -0,0 +1,125 @@
+package net.chaossquad.mclib.packets.packetevents;
+
+import net.minecraft.network.protocol.Packet;
+import org.bukkit.entity.Player;
+import org.bukkit.event.Cancellable;
+import org.bukkit.event.Event;
+import org.bukkit.event.HandlerList;
+
+/**
+ * Base class of the packet events fired by {@link PacketEventHandler}.
+ * Contains the player, the packet and the cancel/replace state that is shared by both directions.<br/>
+ * <b>Events are reused:</b> Each channel has one event object per direction that is reset for every packet.
+ * An event (and its player/packet accessors) is only valid during the listener call.
+ * Listeners must not store the event or pass it to other threads. Copy the values you need instead.
+ */
+public abstract class PacketEvent extends Event implements Cancellable {
+    private Player player;
+    private Packet<?> packet;
+    private boolean cancelled;
+    private Packet<?> replacement;
+
+    /**
+     * Creates a PacketEvent.
+     * @param player player
+     * @param packet packet
+     */
+    protected PacketEvent(Player player, Packet<?> packet) {
+        super(true);
+        this.player = player;
+        this.packet = packet;
+        this.cancelled = false;
+        this.replacement = null;
+    }
+
+    /**
+     * Creates the event that is fired for a packet of the direction.
+     * Packets received from the player fire {@link ClientboundPacketEvent}, packets sent to the player fire {@link ServerboundPacketEvent}.
+     * This is the mapping of the first versions of this library, which is kept so that existing listeners keep working.
+     * @param direction direction
+     * @param player player
+     * @param packet packet
+     * @return event
+     */
+    static PacketEvent create(PacketDirection direction, Player player, Packet<?> packet) {
+        return direction == PacketDirection.SERVERBOUND ? new ClientboundPacketEvent(player, packet) : new ServerboundPacketEvent(player, packet);
+    }
+
+    /**
+     * Returns the handler list of the event that is fired for a packet of the direction.
+     * @param direction direction
+     * @return handler list
+     */
+    static HandlerList getHandlerList(PacketDirection direction) {
+        return direction == PacketDirection.SERVERBOUND ? ClientboundPacketEvent.getHandlerList() : ServerboundPacketEvent.getHandlerList();
+    }
+
+    /**
+     * Resets the event so that it can be reused for another packet.
+     * @param player player
+     * @param packet packet
+     */
+    final void reset(Player player, Packet<?> packet) {
+        this.player = player;
+        this.packet = packet;
+        this.cancelled = false;
+        this.replacement = null;
+    }
+
+    /**
+     * Returns the player the event has been fired for.
+     * @return player
+     */
+    public Player getPlayer() {
+        return this.player;
+    }
+
+    /**
+     * Returns the packet the event is fired for.
+     * @return packet
+     */
+    public Packet<?> getPacket() {
+        return this.packet;
+    }
+
+    /**
+     * Returns the direction of the packet.
+     * @return direction
+     */
+    public abstract PacketDirection getDirection();
+
+    /**
+     * Returns if the event has been cancelled.
+     * @return cancelled
+     */
+    @Override
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    /**
+     * Sets the cancelled status of the event
+     * @param b true if you wish to cancel this event
+     */
+    @Override
+    public void setCancelled(boolean b) {
+        this.cancelled = b;
+    }
+
+    /**
+     * Returns the replacement packet
+     * @return replacement packet
+     */
+    public Packet<?> getReplacement() {
+        return this.replacement;
+    }
+
+    /**
+     * Sets the packet to replace the old with
+     * @param replacement replacement packet
+     */
+    public void setReplacement(Packet<?> replacement) {
+        this.replacement = replacement;
+    }
+
+}
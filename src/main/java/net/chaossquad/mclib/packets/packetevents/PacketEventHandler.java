@@ -1,142 +1,91 @@
 package net.chaossquad.mclib.packets.packetevents;
 
-import io.netty.channel.ChannelHandlerContext;
-import io.netty.channel.ChannelInboundHandlerAdapter;
-import io.netty.channel.ChannelOutboundHandlerAdapter;
-import io.netty.channel.ChannelPromise;
-import net.chaossquad.mclib.packets.PacketUtils;
-import net.minecraft.network.Connection;
-import net.minecraft.network.protocol.Packet;
-import org.bukkit.craftbukkit.entity.CraftPlayer;
+import net.chaossquad.mclib.packets.ConnectionRegistry;
+import net.chaossquad.mclib.packets.PlayerConnection;
+import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
 import org.bukkit.event.Listener;
 import org.bukkit.event.player.PlayerJoinEvent;
-import org.bukkit.event.player.PlayerQuitEvent;
 import org.bukkit.plugin.Plugin;
 
-import java.util.NoSuchElementException;
 import java.util.UUID;
 
 /**
  * Fires events when NMS packets are being sent or received.
  * Also allows editing or cancelling these packets inside the events.
- * The events are: {@link ClientboundPacketEvent} and {@link ServerboundPacketEvent}.
- * When you create an object of this class, everything should work as intended, and you just need to listen for the events.
+ * The events are: {@link ClientboundPacketEvent} (received packets) and {@link ServerboundPacketEvent} (sent packets), see {@link PacketEvent#getDirection()}.
+ * When you create an object of this class, everything should work as intended, and you just need to listen for the events.<br/>
+ * Alternatively, listeners for specific packet classes can be registered at the {@link #getListenerRegistry()}.
+ * Packets are only turned into events if a registry listener for their class or a bukkit listener for the event exists.<br/>
+ * All PacketEventHandlers share one handler per channel, see {@link PacketPipeline}.
+ * To also receive handshake, login and configuration packets, set the injection mode of the pipeline to {@link InjectionMode#CHANNEL_INIT}.
  */
 public final class PacketEventHandler implements Listener {
     private final Plugin plugin;
     private final UUID uuid;
+    private final PacketListenerRegistry registry;
+    private final EventPriority priority;
 
     /**
-     * Creates the PacketEventHandler.
+     * Creates the PacketEventHandler with {@link EventPriority#NORMAL}.
      * @param plugin plugin
      */
     public PacketEventHandler(Plugin plugin) {
+        this(plugin, EventPriority.NORMAL);
+    }
+
+    /**
+     * Creates the PacketEventHandler.
+     * @param plugin plugin
+     * @param priority priority of the listener registry compared to the registries of other PacketEventHandlers
+     */
+    public PacketEventHandler(Plugin plugin, EventPriority priority) {
         this.plugin = plugin;
         this.uuid = UUID.randomUUID();
+        this.registry = new PacketListenerRegistry(this.plugin.getName(), this.plugin.getLogger());
+        this.priority = priority;
+        ConnectionRegistry.getInstance().register(this.plugin);
+        PacketPipeline.getInstance().attach(this.registry, this.priority);
         this.plugin.getServer().getPluginManager().registerEvents(this, this.plugin);
+
+        for (Player player : this.plugin.getServer().getOnlinePlayers()) {
+            this.inject(player);
+        }
+
     }
 
     // PACKET LISTENERS
 
     /**
-     * Injects the packet listener into the players pipeline.
+     * Injects the packet handler into the players pipeline.
+     * Does nothing if it has already been injected by another PacketEventHandler or the pipeline uses {@link InjectionMode#CHANNEL_INIT}.
      * @param event event
      */
     @EventHandler
     public void onPlayerJoin(PlayerJoinEvent event) {
+        if (PacketPipeline.getInstance().getInjectionMode() == InjectionMode.CHANNEL_INIT) return;
+        this.inject(event.getPlayer());
+    }
 
-        Connection connection = PacketUtils.getConnection(((CraftPlayer) event.getPlayer()).getHandle());
+    private void inject(Player player) {
+        PlayerConnection connection = ConnectionRegistry.getInstance().get(player);
 
         if (connection == null) {
             return;
         }
 
-        connection.channel.pipeline().addBefore("packet_handler", this.getReaderName(), new ChannelInboundHandlerAdapter() {
-
-            public void channelRead(ChannelHandlerContext ctx, Object msg) {
-                boolean cancelled = false;
-                Packet replacement = null;
-
-                if (msg instanceof Packet<?> packet) {
-
-                    ClientboundPacketEvent packetEvent = new ClientboundPacketEvent(event.getPlayer(), packet);
-                    plugin.getServer().getPluginManager().callEvent(packetEvent);
-                    cancelled = packetEvent.isCancelled();
-                    replacement = packetEvent.getReplacement();
-
-                }
-
-                if (cancelled) {
-                    return;
-                }
-
-                if (replacement != null) {
-                    ctx.fireChannelRead(replacement);
-                    return;
-                }
-
-                ctx.fireChannelRead(msg);
-            }
-
-        });
-
-        connection.channel.pipeline().addBefore("packet_handler", this.getWriterName(), new ChannelOutboundHandlerAdapter() {
-
-            public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
-                boolean cancelled = false;
-                Packet replacement = null;
-
-                if (msg instanceof Packet<?> packet) {
-
-                    ServerboundPacketEvent packetEvent = new ServerboundPacketEvent(event.getPlayer(), packet);
-                    plugin.getServer().getPluginManager().callEvent(packetEvent);
-                    cancelled = packetEvent.isCancelled();
-                    replacement = packetEvent.getReplacement();
-
-                }
-
-                if (cancelled) {
-                    return;
-                }
-
-                if (replacement != null) {
-                    ctx.write(replacement, promise);
-                    return;
-                }
-
-                ctx.write(msg, promise);
-            }
-
-        });
-
+        PacketPipeline.getInstance().inject(connection.getChannel(), player);
     }
 
     /**
-     * Removes the packet entity listener from the player's pipeline.
-     * @param event event
+     * Detaches this handler from the packet pipeline and unregisters its bukkit listeners.
+     * Should be called when the plugin is disabled.
      */
-    @EventHandler
-    public void onPlayerQuit(PlayerQuitEvent event) {
-
-        Connection connection = PacketUtils.getConnection(((CraftPlayer) event.getPlayer()).getHandle());
-
-        if (connection == null) {
-            return;
-        }
-
-        try {
-            connection.channel.pipeline().remove(this.getReaderName());
-        } catch (NoSuchElementException ignored) {
-            // should already be removed at this point
-        }
-
-        try {
-            connection.channel.pipeline().remove(this.getWriterName());
-        } catch (NoSuchElementException ignored) {
-            // should already be removed at this point
-        }
-
+    public void unregister() {
+        PacketPipeline.getInstance().detach(this.registry);
+        HandlerList.unregisterAll(this);
     }
 
     // GETTER
@@ -149,9 +98,26 @@ public final class PacketEventHandler implements Listener {
         return plugin;
     }
 
+    /**
+     * Returns the listener registry.
+     * Listeners registered here are only called for the packet classes they have been registered for.
+     * @return listener registry
+     */
+    public PacketListenerRegistry getListenerRegistry() {
+        return this.registry;
+    }
+
+    /**
+     * Returns the priority of the listener registry.
+     * @return priority
+     */
+    public EventPriority getPriority() {
+        return this.priority;
+    }
+
     /**
      * Returns the UUID of the PacketEventHandler.<br/>
-     * It is used for identification of the pipeline listeners
+     * It is used for identification of the handler
      * @return uuid
      */
     public UUID getUuid() {
@@ -161,17 +127,21 @@ public final class PacketEventHandler implements Listener {
     /**
      * Returns the packet reader name.
      * @return packet reader name
+     * @deprecated all handlers share one pipeline handler named {@link PacketPipeline#HANDLER_NAME}
      */
+    @Deprecated
     public String getReaderName() {
-        return "MCLIB-READER-" + uuid.toString();
+        return PacketPipeline.HANDLER_NAME;
     }
 
     /**
      * Returns the packet writer name.
      * @return packet writer name
+     * @deprecated all handlers share one pipeline handler named {@link PacketPipeline#HANDLER_NAME}
      */
+    @Deprecated
     public String getWriterName() {
-        return "MCLIB-WRITER-" + uuid.toString();
+        return PacketPipeline.HANDLER_NAME;
     }
 
 }
@@ -0,0 +1,178 @@
+package net.chaossquad.mclib.packets.packetevents;
+
+import net.minecraft.network.protocol.Packet;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventPriority;
+
+import java.util.*;
+import java.util.function.IntPredicate;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * Declarative filter for a {@link PacketListener}.<br/>
+ * A filter is built once and passed to {@link PacketListenerRegistry#register(PacketFilter, EventPriority, PacketListener)}.
+ * The packet class and direction are used for the listener lookup, the player set is resolved once per channel,
+ * and the field conditions are combined into one predicate per channel.
+ * Packets that do not match any filter pass the channel without creating an event.
+ * <pre>{@code
+ * PacketFilter<ClientboundSetEntityDataPacket> filter = PacketFilter.of(PacketDirection.CLIENTBOUND, ClientboundSetEntityDataPacket.class)
+ *         .players(Set.of(uuid))
+ *         .whereInt(ClientboundSetEntityDataPacket::id, id -> id == entityId);
+ * }</pre>
+ * Filters are immutable, every method returns a new filter.
+ * @param <P> packet type
+ */
+public final class PacketFilter<P extends Packet<?>> {
+    private static final Predicate<Packet<?>> NEVER = packet -> false;
+    private final PacketDirection direction;
+    private final Class<P> packetClass;
+    private final Set<UUID> players;
+    private final List<Predicate<? super P>> conditions;
+
+    private PacketFilter(PacketDirection direction, Class<P> packetClass, Set<UUID> players, List<Predicate<? super P>> conditions) {
+        this.direction = direction;
+        this.packetClass = packetClass;
+        this.players = players;
+        this.conditions = conditions;
+    }
+
+    /**
+     * Creates a filter that matches all packets of the class (including subclasses) in the direction.
+     * @param direction direction
+     * @param packetClass packet class
+     * @return filter
+     * @param <P> packet type
+     */
+    public static <P extends Packet<?>> PacketFilter<P> of(PacketDirection direction, Class<P> packetClass) {
+        if (direction == null || packetClass == null) throw new IllegalArgumentException("Arguments cannot be null");
+        return new PacketFilter<>(direction, packetClass, null, List.of());
+    }
+
+    // CONDITIONS
+
+    /**
+     * Only matches packets of the specified players.
+     * Replaces the player set of this filter.
+     * @param players uuids of the players
+     * @return filter
+     */
+    public PacketFilter<P> players(Collection<UUID> players) {
+        if (players == null) throw new IllegalArgumentException("Players cannot be null");
+        return new PacketFilter<>(this.direction, this.packetClass, Set.copyOf(players), this.conditions);
+    }
+
+    /**
+     * Only matches packets of the specified players.
+     * Replaces the player set of this filter.
+     * @param players players
+     * @return filter
+     */
+    public PacketFilter<P> players(Player... players) {
+        List<UUID> uuids = new ArrayList<>();
+
+        for (Player player : players) {
+            uuids.add(player.getUniqueId());
+        }
+
+        return this.players(uuids);
+    }
+
+    /**
+     * Only matches packets for which the condition is true.
+     * The condition is called on the netty event loop for every packet of the class and should be cheap.
+     * @param condition condition
+     * @return filter
+     */
+    public PacketFilter<P> where(Predicate<? super P> condition) {
+        if (condition == null) throw new IllegalArgumentException("Condition cannot be null");
+
+        List<Predicate<? super P>> conditions = new ArrayList<>(this.conditions);
+        conditions.add(condition);
+        return new PacketFilter<>(this.direction, this.packetClass, this.players, List.copyOf(conditions));
+    }
+
+    /**
+     * Only matches packets whose int field matches the condition (e.g. {@code ClientboundSetEntityDataPacket::id}).
+     * @param field getter of the field
+     * @param condition condition
+     * @return filter
+     */
+    public PacketFilter<P> whereInt(ToIntFunction<? super P> field, IntPredicate condition) {
+        if (field == null || condition == null) throw new IllegalArgumentException("Arguments cannot be null");
+        return this.where(packet -> condition.test(field.applyAsInt(packet)));
+    }
+
+    /**
+     * Only matches packets whose int field is one of the specified values.
+     * @param field getter of the field
+     * @param values values
+     * @return filter
+     */
+    public PacketFilter<P> whereIntIn(ToIntFunction<? super P> field, int... values) {
+        if (values.length == 1) {
+            int value = values[0];
+            return this.whereInt(field, v -> v == value);
+        }
+
+        int[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return this.whereInt(field, v -> Arrays.binarySearch(sorted, v) >= 0);
+    }
+
+    // COMPILE
+
+    /**
+     * Compiles the filter for the channel of the specified player.
+     * The player set is resolved here, so only the field conditions remain in the predicate.
+     * The packet class is not checked, it is guaranteed by the listener lookup.
+     * @param player player of the channel, null if unknown
+     * @return predicate, null if the filter matches every packet of the channel
+     */
+    @SuppressWarnings("unchecked")
+    Predicate<Packet<?>> compile(Player player) {
+        if (this.players != null && (player == null || !this.players.contains(player.getUniqueId()))) return NEVER;
+
+        return switch (this.conditions.size()) {
+            case 0 -> null;
+            case 1 -> (Predicate<Packet<?>>) (Predicate<?>) this.conditions.getFirst();
+            default -> {
+                Predicate<? super P>[] conditions = this.conditions.toArray(new Predicate[0]);
+
+                yield packet -> {
+                    for (Predicate<? super P> condition : conditions) {
+                        if (!condition.test((P) packet)) return false;
+                    }
+                    return true;
+                };
+            }
+        };
+    }
+
+    // GETTER
+
+    /**
+     * Returns the direction.
+     * @return direction
+     */
+    public PacketDirection getDirection() {
+        return this.direction;
+    }
+
+    /**
+     * Returns the packet class.
+     * @return packet class
+     */
+    public Class<P> getPacketClass() {
+        return this.packetClass;
+    }
+
+    /**
+     * Returns the players the filter is limited to.
+     * @return set of uuids, null if all players match
+     */
+    public Set<UUID> getPlayers() {
+        return this.players;
+    }
+
+}
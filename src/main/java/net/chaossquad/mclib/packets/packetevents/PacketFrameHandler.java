@@ -0,0 +1,117 @@
+package net.chaossquad.mclib.packets.packetevents;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.ChannelPromise;
+
+import java.util.NoSuchElementException;
+
+/**
+ * Handlers that see the raw frames of a channel (packet id and payload, without length prefix and compression).<br/>
+ * The inbound handler is placed after the splitter/decompressor and the outbound handler before the compressor/prepender.
+ * Compression handlers that are added later are inserted between the length handlers and these handlers, so the frames always stay uncompressed.
+ * They are only installed when a feature of the {@link PacketPipeline} needs them (metrics, captures or {@link RawFrameListener}s).
+ * Frames dropped by raw frame listeners are released here and never reach the decoder or the network.
+ */
+final class PacketFrameHandler {
+    static final String INBOUND_NAME = "mclib_packets_frame_in";
+    static final String OUTBOUND_NAME = "mclib_packets_frame_out";
+
+    private PacketFrameHandler() {}
+
+    /**
+     * Adds the frame handlers to the pipeline if they don't exist.
+     * @param pipeline channel pipeline
+     * @param handler channel handler of the connection
+     */
+    static void inject(ChannelPipeline pipeline, PacketChannelHandler handler) {
+
+        try {
+
+            if (pipeline.get(INBOUND_NAME) == null) {
+                String base = pipeline.get("decompress") != null ? "decompress" : "splitter";
+                if (pipeline.get(base) != null) pipeline.addAfter(base, INBOUND_NAME, new Inbound(handler));
+            }
+
+            if (pipeline.get(OUTBOUND_NAME) == null) {
+                String base = pipeline.get("compress") != null ? "compress" : "prepender";
+                if (pipeline.get(base) != null) pipeline.addAfter(base, OUTBOUND_NAME, new Outbound(handler));
+            }
+
+        } catch (IllegalArgumentException | NoSuchElementException ignored) {
+            // connection closed or handlers added concurrently
+        }
+
+    }
+
+    /**
+     * Removes the frame handlers from the pipeline.
+     * @param pipeline channel pipeline
+     */
+    static void uninject(ChannelPipeline pipeline) {
+
+        try {
+            if (pipeline.get(INBOUND_NAME) instanceof Inbound) pipeline.remove(INBOUND_NAME);
+        } catch (NoSuchElementException ignored) {
+            // already removed
+        }
+
+        try {
+            if (pipeline.get(OUTBOUND_NAME) instanceof Outbound) pipeline.remove(OUTBOUND_NAME);
+        } catch (NoSuchElementException ignored) {
+            // already removed
+        }
+
+    }
+
+    /**
+     * Sees the frames received from the client before they are decoded.
+     */
+    static final class Inbound extends ChannelInboundHandlerAdapter {
+        private final PacketChannelHandler handler;
+
+        Inbound(PacketChannelHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+
+            if (msg instanceof ByteBuf frame && !this.handler.onInboundFrame(frame)) {
+                frame.release();
+                return;
+            }
+
+            super.channelRead(ctx, msg);
+        }
+
+    }
+
+    /**
+     * Sees the frames sent to the client after they have been encoded.
+     */
+    static final class Outbound extends ChannelOutboundHandlerAdapter {
+        private final PacketChannelHandler handler;
+
+        Outbound(PacketChannelHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+
+            if (msg instanceof ByteBuf frame && !this.handler.onOutboundFrame(frame)) {
+                frame.release();
+                promise.trySuccess();
+                return;
+            }
+
+            super.write(ctx, msg, promise);
+        }
+
+    }
+
+}
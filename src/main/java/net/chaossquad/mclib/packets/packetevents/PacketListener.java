@@ -0,0 +1,23 @@
+package net.chaossquad.mclib.packets.packetevents;
+
+import net.minecraft.network.protocol.Packet;
+
+/**
+ * A listener for a specific packet type.
+ * Registered at a {@link PacketListenerRegistry}.
+ * Listeners are called on the netty event loop of the player's connection, so they should not block.
+ * The event is reused for the next packet of the channel and must not be stored (see {@link PacketEvent}).
+ * @param <P> packet type
+ */
+@FunctionalInterface
+public interface PacketListener<P extends Packet<?>> {
+
+    /**
+     * Called when a packet of the registered type is sent or received.
+     * The packet can be cancelled or replaced using the event.
+     * @param event event
+     * @param packet packet (same as {@link PacketEvent#getPacket()})
+     */
+    void onPacket(PacketEvent event, P packet);
+
+}
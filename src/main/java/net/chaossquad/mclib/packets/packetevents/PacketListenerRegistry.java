@@ -0,0 +1,446 @@
+package net.chaossquad.mclib.packets.packetevents;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.network.ConnectionProtocol;
+import net.minecraft.network.protocol.Packet;
+import org.bukkit.event.EventPriority;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Registry of {@link PacketListener}s keyed by packet class.<br/>
+ * For every packet class, the matching listeners are computed once and cached as an array, sorted by priority.
+ * The cache is rebuilt when listeners are registered or unregistered.
+ * Packet classes without any listeners resolve to an empty array, so they can pass without creating an event.
+ * Listeners can be registered with a {@link PacketFilter}, which is checked before an event is created.
+ */
+public final class PacketListenerRegistry {
+    private static final RegisteredPacketListener<?>[] EMPTY = new RegisteredPacketListener<?>[0];
+    private static final RegisteredRawFrameListener[] EMPTY_RAW = new RegisteredRawFrameListener[0];
+    private final String name;
+    private final Logger logger;
+    private volatile Snapshot snapshot;
+    private volatile Long2ObjectMap<RegisteredRawFrameListener[]> rawFrameListeners;
+    private final Set<PacketPipeline> pipelines;
+
+    /**
+     * Creates a PacketListenerRegistry.
+     * @param name name (used for logging)
+     * @param logger logger for exceptions thrown by listeners
+     */
+    public PacketListenerRegistry(String name, Logger logger) {
+        this.name = name;
+        this.logger = logger;
+        this.snapshot = new Snapshot(EMPTY);
+        this.rawFrameListeners = new Long2ObjectOpenHashMap<>();
+        this.pipelines = ConcurrentHashMap.newKeySet();
+    }
+
+    // REGISTRATION
+
+    /**
+     * Registers a listener for the specified packet class and direction with {@link EventPriority#NORMAL}.
+     * @param direction direction
+     * @param packetClass packet class (subclasses are included)
+     * @param listener listener
+     * @return registered listener
+     * @param <P> packet type
+     */
+    public <P extends Packet<?>> RegisteredPacketListener<P> register(PacketDirection direction, Class<P> packetClass, PacketListener<P> listener) {
+        return this.register(direction, packetClass, EventPriority.NORMAL, listener);
+    }
+
+    /**
+     * Registers a listener for the specified packet class and direction.
+     * Listeners are called from {@link EventPriority#LOWEST} to {@link EventPriority#MONITOR}.
+     * @param direction direction
+     * @param packetClass packet class (subclasses are included)
+     * @param priority priority
+     * @param listener listener
+     * @return registered listener
+     * @param <P> packet type
+     */
+    public <P extends Packet<?>> RegisteredPacketListener<P> register(PacketDirection direction, Class<P> packetClass, EventPriority priority, PacketListener<P> listener) {
+        if (direction == null || packetClass == null || priority == null || listener == null) throw new IllegalArgumentException("Arguments cannot be null");
+        return this.add(new RegisteredPacketListener<>(this, direction, packetClass, priority, listener, null, -1));
+    }
+
+    /**
+     * Registers a listener for the packets matching the filter with {@link EventPriority#NORMAL}.
+     * @param filter filter
+     * @param listener listener
+     * @return registered listener
+     * @param <P> packet type
+     */
+    public <P extends Packet<?>> RegisteredPacketListener<P> register(PacketFilter<P> filter, PacketListener<P> listener) {
+        return this.register(filter, EventPriority.NORMAL, listener);
+    }
+
+    /**
+     * Registers a listener for the packets matching the filter.
+     * The listener is only called for matching packets, and no event is created if no listener matches.
+     * @param filter filter
+     * @param priority priority
+     * @param listener listener
+     * @return registered listener
+     * @param <P> packet type
+     */
+    public <P extends Packet<?>> RegisteredPacketListener<P> register(PacketFilter<P> filter, EventPriority priority, PacketListener<P> listener) {
+        if (filter == null || priority == null || listener == null) throw new IllegalArgumentException("Arguments cannot be null");
+        return this.add(new RegisteredPacketListener<>(this, filter.getDirection(), filter.getPacketClass(), priority, listener, filter, -1));
+    }
+
+    /**
+     * Registers an async listener for the specified packet class and direction with {@link EventPriority#NORMAL}.
+     * @param direction direction
+     * @param packetClass packet class (subclasses are included)
+     * @param timeout time the packet is held at most
+     * @param listener listener
+     * @return registered listener
+     * @param <P> packet type
+     * @see #registerAsync(PacketDirection, Class, EventPriority, Duration, PacketListener)
+     */
+    public <P extends Packet<?>> RegisteredPacketListener<P> registerAsync(PacketDirection direction, Class<P> packetClass, Duration timeout, PacketListener<P> listener) {
+        return this.registerAsync(direction, packetClass, EventPriority.NORMAL, timeout, listener);
+    }
+
+    /**
+     * Registers an async listener for the specified packet class and direction.<br/>
+     * Async listeners are called on a virtual thread after the sync listeners and the bukkit events, so they are allowed to block (e.g. for database lookups).
+     * While they are running, the packet is held back, together with all following packets of the same channel and direction, so the order of the packets never changes.
+     * When all async listeners have returned, the packet is forwarded, cancelled or replaced according to the event.<br/>
+     * If the listeners take longer than the timeout, the packet is forwarded unchanged, the listeners are interrupted and everything they do with the event afterwards is ignored.
+     * Each packet gets its own event, which can be used until the listener returns.
+     * @param direction direction
+     * @param packetClass packet class (subclasses are included)
+     * @param priority priority (relative to other async listeners)
+     * @param timeout time the packet is held at most
+     * @param listener listener
+     * @return registered listener
+     * @param <P> packet type
+     */
+    public <P extends Packet<?>> RegisteredPacketListener<P> registerAsync(PacketDirection direction, Class<P> packetClass, EventPriority priority, Duration timeout, PacketListener<P> listener) {
+        if (direction == null || packetClass == null || priority == null || timeout == null || listener == null) throw new IllegalArgumentException("Arguments cannot be null");
+        if (timeout.isNegative()) throw new IllegalArgumentException("Timeout cannot be negative");
+        return this.add(new RegisteredPacketListener<>(this, direction, packetClass, priority, listener, null, timeout.toNanos()));
+    }
+
+    /**
+     * Registers an async listener for the packets matching the filter.
+     * @param filter filter
+     * @param priority priority (relative to other async listeners)
+     * @param timeout time the packet is held at most
+     * @param listener listener
+     * @return registered listener
+     * @param <P> packet type
+     * @see #registerAsync(PacketDirection, Class, EventPriority, Duration, PacketListener)
+     */
+    public <P extends Packet<?>> RegisteredPacketListener<P> registerAsync(PacketFilter<P> filter, EventPriority priority, Duration timeout, PacketListener<P> listener) {
+        if (filter == null || priority == null || timeout == null || listener == null) throw new IllegalArgumentException("Arguments cannot be null");
+        if (timeout.isNegative()) throw new IllegalArgumentException("Timeout cannot be negative");
+        return this.add(new RegisteredPacketListener<>(this, filter.getDirection(), filter.getPacketClass(), priority, listener, filter, timeout.toNanos()));
+    }
+
+    private <P extends Packet<?>> RegisteredPacketListener<P> add(RegisteredPacketListener<P> registered) {
+
+        synchronized (this) {
+            RegisteredPacketListener<?>[] listeners = Arrays.copyOf(this.snapshot.listeners, this.snapshot.listeners.length + 1);
+            listeners[listeners.length - 1] = registered;
+            this.snapshot = new Snapshot(listeners);
+        }
+
+        return registered;
+    }
+
+    /**
+     * Unregisters a listener.
+     * @param listener listener
+     */
+    public void unregister(RegisteredPacketListener<?> listener) {
+
+        synchronized (this) {
+            List<RegisteredPacketListener<?>> listeners = new ArrayList<>(Arrays.asList(this.snapshot.listeners));
+            if (!listeners.remove(listener)) return;
+            this.snapshot = new Snapshot(listeners.toArray(EMPTY));
+        }
+
+    }
+
+    /**
+     * Registers a listener for the raw frames of a packet id.<br/>
+     * Raw frame listeners see the uncompressed frame before it is decoded (serverbound) or after it has been encoded (clientbound).
+     * They can read the packet id and leading fields of the frame and drop it, without creating a packet object.
+     * Packet ids depend on the protocol phase and the game version.
+     * @param direction direction
+     * @param protocol protocol phase the packet id belongs to
+     * @param packetId packet id
+     * @param listener listener
+     * @return registered listener
+     */
+    public RegisteredRawFrameListener registerRawFrame(PacketDirection direction, ConnectionProtocol protocol, int packetId, RawFrameListener listener) {
+        if (direction == null || protocol == null || listener == null) throw new IllegalArgumentException("Arguments cannot be null");
+
+        RegisteredRawFrameListener registered = new RegisteredRawFrameListener(this, direction, protocol, packetId, listener);
+
+        synchronized (this) {
+            Long2ObjectMap<RegisteredRawFrameListener[]> listeners = new Long2ObjectOpenHashMap<>(this.rawFrameListeners);
+            RegisteredRawFrameListener[] array = listeners.getOrDefault(registered.key(), EMPTY_RAW);
+            array = Arrays.copyOf(array, array.length + 1);
+            array[array.length - 1] = registered;
+            listeners.put(registered.key(), array);
+            this.rawFrameListeners = listeners;
+        }
+
+        this.pipelines.forEach(PacketPipeline::updateFrameHandlers);
+        return registered;
+    }
+
+    /**
+     * Unregisters a raw frame listener.
+     * @param listener listener
+     */
+    public void unregisterRawFrame(RegisteredRawFrameListener listener) {
+
+        synchronized (this) {
+            RegisteredRawFrameListener[] array = this.rawFrameListeners.get(listener.key());
+            if (array == null) return;
+
+            List<RegisteredRawFrameListener> list = new ArrayList<>(Arrays.asList(array));
+            if (!list.remove(listener)) return;
+
+            Long2ObjectMap<RegisteredRawFrameListener[]> listeners = new Long2ObjectOpenHashMap<>(this.rawFrameListeners);
+
+            if (list.isEmpty()) {
+                listeners.remove(listener.key());
+            } else {
+                listeners.put(listener.key(), list.toArray(EMPTY_RAW));
+            }
+
+            this.rawFrameListeners = listeners;
+        }
+
+        this.pipelines.forEach(PacketPipeline::updateFrameHandlers);
+    }
+
+    /**
+     * Unregisters all listeners, including raw frame listeners.
+     */
+    public void unregisterAll() {
+
+        synchronized (this) {
+            this.snapshot = new Snapshot(EMPTY);
+            this.rawFrameListeners = new Long2ObjectOpenHashMap<>();
+        }
+
+        this.pipelines.forEach(PacketPipeline::updateFrameHandlers);
+    }
+
+    /**
+     * Called by the pipeline when the registry has been attached to it.
+     * @param pipeline pipeline
+     */
+    void attached(PacketPipeline pipeline) {
+        this.pipelines.add(pipeline);
+    }
+
+    /**
+     * Called by the pipeline when the registry has been detached from it.
+     * @param pipeline pipeline
+     */
+    void detached(PacketPipeline pipeline) {
+        this.pipelines.remove(pipeline);
+    }
+
+    // DISPATCH
+
+    /**
+     * Returns the sync listeners for the specified direction and packet class, sorted by priority.
+     * The returned array is cached and must not be modified.
+     * @param direction direction
+     * @param packetClass packet class
+     * @return listeners
+     */
+    public RegisteredPacketListener<?>[] getListeners(PacketDirection direction, Class<?> packetClass) {
+        return this.snapshot.get(direction, packetClass, false);
+    }
+
+    /**
+     * Returns the async listeners for the specified direction and packet class, sorted by priority.
+     * The returned array is cached and must not be modified.
+     * @param direction direction
+     * @param packetClass packet class
+     * @return async listeners
+     */
+    public RegisteredPacketListener<?>[] getAsyncListeners(PacketDirection direction, Class<?> packetClass) {
+        return this.snapshot.get(direction, packetClass, true);
+    }
+
+    /**
+     * Calls the specified listeners with the event.
+     * Exceptions thrown by listeners are logged and do not affect the other listeners.
+     * @param listeners listeners (from {@link #getListeners(PacketDirection, Class)} or {@link #getAsyncListeners(PacketDirection, Class)})
+     * @param event event
+     */
+    public void callListeners(RegisteredPacketListener<?>[] listeners, PacketEvent event) {
+        this.callListeners(listeners, null, 0, event);
+    }
+
+    /**
+     * Calls the specified listeners whose filters match the packet of the event.
+     * @param listeners listeners
+     * @param filters compiled filters of the listeners, null to call all listeners
+     * @param matches result of {@link CompiledPacketFilters#match(Packet)} for the listeners, ignored if filters is null
+     * @param event event
+     */
+    void callListeners(RegisteredPacketListener<?>[] listeners, CompiledPacketFilters filters, long matches, PacketEvent event) {
+
+        for (int i = 0; i < listeners.length; i++) {
+            if (filters != null && !filters.isMatch(matches, i, event.getPacket())) continue;
+
+            try {
+                listeners[i].call(event);
+            } catch (Exception e) {
+                this.logger.log(Level.SEVERE, "Exception in packet listener of " + this.name + " for " + event.getPacket().getClass().getName(), e);
+            }
+        }
+
+    }
+
+    /**
+     * Returns the raw frame listeners for the specified frame.
+     * The returned array must not be modified.
+     * @param direction direction
+     * @param protocol protocol ordinal
+     * @param packetId packet id
+     * @return listeners
+     */
+    RegisteredRawFrameListener[] getRawFrameListeners(PacketDirection direction, int protocol, int packetId) {
+        return this.rawFrameListeners.getOrDefault(RegisteredRawFrameListener.key(direction, protocol, packetId), EMPTY_RAW);
+    }
+
+    /**
+     * Calls the specified raw frame listeners with the frame.
+     * Exceptions thrown by listeners are logged and do not affect the other listeners.
+     * Every listener reads the payload from the start.
+     * @param listeners listeners
+     * @param frame frame
+     */
+    void callRawFrameListeners(RegisteredRawFrameListener[] listeners, RawFrame frame) {
+
+        for (RegisteredRawFrameListener listener : listeners) {
+            frame.rewind();
+
+            try {
+                listener.getListener().onFrame(frame);
+            } catch (Exception e) {
+                this.logger.log(Level.SEVERE, "Exception in raw frame listener of " + this.name + " for packet id " + frame.getPacketId(), e);
+            }
+        }
+
+    }
+
+    /**
+     * Returns true if there are raw frame listeners.
+     * @return has raw frame listeners
+     */
+    public boolean hasRawFrameListeners() {
+        return !this.rawFrameListeners.isEmpty();
+    }
+
+    // GETTER
+
+    /**
+     * Returns the name of the registry.
+     * @return name
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * Returns all registered listeners.
+     * @return list of listeners
+     */
+    public List<RegisteredPacketListener<?>> getRegisteredListeners() {
+        return List.of(this.snapshot.listeners);
+    }
+
+    /**
+     * Returns true if any registered listener has a {@link PacketFilter}.
+     * @return has filters
+     */
+    public boolean hasFilters() {
+        return this.snapshot.hasFilters;
+    }
+
+    /**
+     * Returns true if there are no registered listeners.
+     * @return empty
+     */
+    public boolean isEmpty() {
+        return this.snapshot.listeners.length == 0 && this.rawFrameListeners.isEmpty();
+    }
+
+    // SNAPSHOT
+
+    /**
+     * Immutable listener array together with the per-class caches computed from it.
+     * Replaced as a whole when the listeners change, so a cache can never contain listeners of another snapshot.
+     */
+    private static final class Snapshot {
+        private final RegisteredPacketListener<?>[] listeners;
+        private final Map<Class<?>, RegisteredPacketListener<?>[]> clientbound;
+        private final Map<Class<?>, RegisteredPacketListener<?>[]> serverbound;
+        private final Map<Class<?>, RegisteredPacketListener<?>[]> clientboundAsync;
+        private final Map<Class<?>, RegisteredPacketListener<?>[]> serverboundAsync;
+        private final boolean hasAsync;
+        private final boolean hasFilters;
+
+        private Snapshot(RegisteredPacketListener<?>[] listeners) {
+            this.listeners = listeners;
+            this.clientbound = new ConcurrentHashMap<>();
+            this.serverbound = new ConcurrentHashMap<>();
+            this.clientboundAsync = new ConcurrentHashMap<>();
+            this.serverboundAsync = new ConcurrentHashMap<>();
+            this.hasAsync = Arrays.stream(listeners).anyMatch(RegisteredPacketListener::isAsync);
+            this.hasFilters = Arrays.stream(listeners).anyMatch(listener -> listener.getFilter() != null);
+        }
+
+        private RegisteredPacketListener<?>[] get(PacketDirection direction, Class<?> packetClass, boolean async) {
+            if (this.listeners.length == 0 || (async && !this.hasAsync)) return EMPTY;
+
+            Map<Class<?>, RegisteredPacketListener<?>[]> cache;
+            if (async) {
+                cache = direction == PacketDirection.CLIENTBOUND ? this.clientboundAsync : this.serverboundAsync;
+            } else {
+                cache = direction == PacketDirection.CLIENTBOUND ? this.clientbound : this.serverbound;
+            }
+
+            RegisteredPacketListener<?>[] cached = cache.get(packetClass);
+            if (cached != null) return cached;
+
+            return cache.computeIfAbsent(packetClass, clazz -> this.compute(direction, clazz, async));
+        }
+
+        private RegisteredPacketListener<?>[] compute(PacketDirection direction, Class<?> packetClass, boolean async) {
+            List<RegisteredPacketListener<?>> matching = new ArrayList<>();
+
+            for (RegisteredPacketListener<?> listener : this.listeners) {
+                if (listener.isAsync() == async && listener.matches(direction, packetClass)) matching.add(listener);
+            }
+
+            if (matching.isEmpty()) return EMPTY;
+
+            // stable sort, listeners with the same priority are called in registration order
+            matching.sort(Comparator.comparing(RegisteredPacketListener::getPriority));
+            return matching.toArray(EMPTY);
+        }
+
+    }
+
+}
@@ -0,0 +1,119 @@
+package net.chaossquad.mclib.packets.packetevents;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Traffic metrics of a {@link PacketPipeline}.<br/>
+ * When enabled, the pipeline counts packets, cancellations and replacements per packet class and direction,
+ * measures the estimated size of the packets and records how long the listeners of each registry take.
+ * Byte sizes require additional frame handlers in the channel pipeline, which are installed when the metrics are enabled.
+ * Disabled metrics cost one volatile read per packet.
+ */
+public final class PacketMetrics {
+    /**
+     * Name used for the time spent in bukkit event listeners.
+     */
+    public static final String BUKKIT_LISTENERS = "bukkit";
+    private final PacketPipeline pipeline;
+    private final Map<Class<?>, PacketTypeMetrics> clientbound;
+    private final Map<Class<?>, PacketTypeMetrics> serverbound;
+    private final Map<String, LatencyHistogram> listenerTime;
+    private volatile boolean enabled;
+
+    PacketMetrics(PacketPipeline pipeline) {
+        this.pipeline = pipeline;
+        this.clientbound = new ConcurrentHashMap<>();
+        this.serverbound = new ConcurrentHashMap<>();
+        this.listenerTime = new ConcurrentHashMap<>();
+        this.enabled = false;
+    }
+
+    // STATE
+
+    /**
+     * Returns true if metrics are collected.
+     * @return enabled
+     */
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * Enables or disables the metrics.
+     * @param enabled enabled
+     */
+    public void setEnabled(boolean enabled) {
+        if (this.enabled == enabled) return;
+        this.enabled = enabled;
+        this.pipeline.updateFrameHandlers();
+    }
+
+    /**
+     * Resets all collected metrics.
+     */
+    public void reset() {
+        this.clientbound.values().forEach(PacketTypeMetrics::reset);
+        this.serverbound.values().forEach(PacketTypeMetrics::reset);
+        this.listenerTime.values().forEach(LatencyHistogram::reset);
+    }
+
+    // RECORDING
+
+    /**
+     * Returns the metrics of the specified packet class, creates them if they don't exist.
+     * @param direction direction
+     * @param packetClass packet class
+     * @return packet type metrics
+     */
+    PacketTypeMetrics getOrCreate(PacketDirection direction, Class<?> packetClass) {
+        Map<Class<?>, PacketTypeMetrics> map = direction == PacketDirection.CLIENTBOUND ? this.clientbound : this.serverbound;
+
+        PacketTypeMetrics metrics = map.get(packetClass);
+        if (metrics != null) return metrics;
+
+        return map.computeIfAbsent(packetClass, clazz -> new PacketTypeMetrics(direction, clazz));
+    }
+
+    /**
+     * Records the time the listeners of a registry took for one packet.
+     * @param name registry name
+     * @param nanos nanoseconds
+     */
+    void recordListenerTime(String name, long nanos) {
+        LatencyHistogram histogram = this.listenerTime.get(name);
+        if (histogram == null) histogram = this.listenerTime.computeIfAbsent(name, n -> new LatencyHistogram());
+        histogram.record(nanos);
+    }
+
+    // GETTER
+
+    /**
+     * Returns the metrics of all packet classes that have been seen in the specified direction.
+     * @param direction direction
+     * @return map of packet class to metrics
+     */
+    public Map<Class<?>, PacketTypeMetrics> getPacketTypes(PacketDirection direction) {
+        return Map.copyOf(direction == PacketDirection.CLIENTBOUND ? this.clientbound : this.serverbound);
+    }
+
+    /**
+     * Returns the metrics of the specified packet class.
+     * @param direction direction
+     * @param packetClass packet class
+     * @return metrics, null if the packet class has not been seen
+     */
+    public PacketTypeMetrics getPacketType(PacketDirection direction, Class<?> packetClass) {
+        return (direction == PacketDirection.CLIENTBOUND ? this.clientbound : this.serverbound).get(packetClass);
+    }
+
+    /**
+     * Returns the time spent in listeners per registry name (usually the plugin name).
+     * The time of bukkit event listeners is stored as {@link #BUKKIT_LISTENERS}.
+     * @return map of registry name to histogram
+     */
+    public Map<String, LatencyHistogram> getListenerTimes() {
+        return Map.copyOf(this.listenerTime);
+    }
+
+}
@@ -0,0 +1,133 @@
+package net.chaossquad.mclib.packets.packetevents;
+
+import net.chaossquad.mclib.command.TabCompletingCommandExecutor;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
+import org.bukkit.plugin.Plugin;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A command which shows the traffic metrics of the {@link PacketPipeline}.
+ */
+public class PacketMetricsSubcommand implements TabCompletingCommandExecutor {
+    private static final int LIMIT = 15;
+    private final Plugin plugin;
+    private final String permission;
+
+    /**
+     * Creates a PacketMetricsSubcommand.
+     * @param plugin plugin
+     * @param permission permission
+     */
+    public PacketMetricsSubcommand(Plugin plugin, String permission) {
+        this.plugin = plugin;
+        this.permission = permission;
+    }
+
+    @Override
+    public boolean onCommand(CommandSender sender, Command cmd, String label, String[] args) {
+
+        if (sender != this.plugin.getServer().getConsoleSender() && !sender.hasPermission(this.permission)) {
+            sender.sendMessage("§cNo permission");
+            return true;
+        }
+
+        PacketMetrics metrics = PacketPipeline.getInstance().getMetrics();
+
+        if (args.length < 1) {
+            sender.sendMessage("§7Usage: [...] packetmetrics enable/disable/reset/clientbound/serverbound/listeners [sort]");
+            sender.sendMessage("§7enabled: " + metrics.isEnabled());
+            return true;
+        }
+
+        switch (args[0]) {
+            case "enable" -> {
+                metrics.setEnabled(true);
+                sender.sendMessage("§aPacket metrics enabled");
+            }
+            case "disable" -> {
+                metrics.setEnabled(false);
+                sender.sendMessage("§aPacket metrics disabled");
+            }
+            case "reset" -> {
+                metrics.reset();
+                sender.sendMessage("§aPacket metrics reset");
+            }
+            case "clientbound", "serverbound" -> {
+
+                PacketDirection direction = args[0].equals("clientbound") ? PacketDirection.CLIENTBOUND : PacketDirection.SERVERBOUND;
+                String sort = args.length > 1 ? args[1] : "count";
+
+                Comparator<PacketTypeMetrics> comparator = switch (sort) {
+                    case "bytes" -> Comparator.comparingLong(PacketTypeMetrics::getBytes);
+                    case "time" -> Comparator.comparingLong(m -> m.getListenerTime().getTotalNanos());
+                    case "cancelled" -> Comparator.comparingLong(PacketTypeMetrics::getCancelled);
+                    default -> Comparator.comparingLong(PacketTypeMetrics::getCount);
+                };
+
+                List<PacketTypeMetrics> types = new ArrayList<>(metrics.getPacketTypes(direction).values());
+                types.sort(comparator.reversed());
+
+                sender.sendMessage("§7§l" + direction.name().toLowerCase() + " packets (by " + sort + "):");
+                sender.sendMessage("§7type count cancelled replaced bytes listener-mean/p99/max");
+
+                for (PacketTypeMetrics type : types.subList(0, Math.min(LIMIT, types.size()))) {
+                    LatencyHistogram time = type.getListenerTime();
+                    sender.sendMessage("§7" + type.getPacketClass().getSimpleName() + " " + type.getCount() + " " + type.getCancelled() + " " + type.getReplaced() + " " + type.getBytes() + " " + formatNanos(time.getMeanNanos()) + "/" + formatNanos(time.getPercentileNanos(99)) + "/" + formatNanos(time.getMaxNanos()));
+                }
+
+            }
+            case "listeners" -> {
+
+                sender.sendMessage("§7§lListener time per registry:");
+                sender.sendMessage("§7name calls total mean/p99/max");
+
+                List<Map.Entry<String, LatencyHistogram>> entries = new ArrayList<>(metrics.getListenerTimes().entrySet());
+                entries.sort(Comparator.comparingLong((Map.Entry<String, LatencyHistogram> entry) -> entry.getValue().getTotalNanos()).reversed());
+
+                for (Map.Entry<String, LatencyHistogram> entry : entries) {
+                    LatencyHistogram time = entry.getValue();
+                    sender.sendMessage("§7" + entry.getKey() + " " + time.getCount() + " " + formatNanos(time.getTotalNanos()) + " " + formatNanos(time.getMeanNanos()) + "/" + formatNanos(time.getPercentileNanos(99)) + "/" + formatNanos(time.getMaxNanos()));
+                }
+
+            }
+            default -> sender.sendMessage("§cUnknown subcommand");
+        }
+
+        return true;
+    }
+
+    @Override
+    public List<String> onTabComplete(CommandSender sender, Command cmd, String label, String[] args) {
+
+        return switch (args.length) {
+            case 1 -> List.of("enable", "disable", "reset", "clientbound", "serverbound", "listeners");
+            case 2 -> switch (args[0]) {
+                case "clientbound", "serverbound" -> List.of("count", "bytes", "time", "cancelled");
+                default -> List.of();
+            };
+            default -> List.of();
+        };
+
+    }
+
+    private static String formatNanos(long nanos) {
+        if (nanos >= 1_000_000_000L) return String.format("%.2fs", nanos / 1_000_000_000.0);
+        if (nanos >= 1_000_000L) return String.format("%.2fms", nanos / 1_000_000.0);
+        if (nanos >= 1_000L) return String.format("%.1fµs", nanos / 1_000.0);
+        return nanos + "ns";
+    }
+
+    /**
+     * Returns the plugin.
+     * @return plugin
+     */
+    public Plugin getPlugin() {
+        return plugin;
+    }
+
+}
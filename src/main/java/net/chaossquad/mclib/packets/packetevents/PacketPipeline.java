@@ -0,0 +1,613 @@
+package net.chaossquad.mclib.packets.packetevents;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelPipeline;
+import io.papermc.paper.network.ChannelInitializeListenerHolder;
+import net.chaossquad.mclib.packets.ConnectionRegistry;
+import net.chaossquad.mclib.packets.PlayerConnection;
+import net.kyori.adventure.key.Key;
+import net.minecraft.SharedConstants;
+import net.minecraft.network.Connection;
+import net.minecraft.network.protocol.Packet;
+import org.bukkit.Bukkit;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventPriority;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * The packet pipeline manages the single {@link PacketChannelHandler} that is injected into each player's channel.<br/>
+ * All {@link PacketEventHandler}s share that handler. It fans out every packet to the attached {@link PacketListenerRegistry}s in priority order
+ * and fires the bukkit events only once per packet.
+ * Registries can be attached and detached at any time without modifying the channel pipelines.<br/>
+ * By default, the handler is injected when a player joins. See {@link #setInjectionMode(InjectionMode)} for full protocol coverage.<br/>
+ * The shared instance is shared by everything that uses the same loaded copy of this library.
+ * Plugins that shade and relocate the library get their own pipeline and their own handler.
+ */
+public final class PacketPipeline {
+    /**
+     * Name of the handler in the channel pipeline.
+     */
+    public static final String HANDLER_NAME = "mclib_packets";
+    private static final PacketPipeline INSTANCE = new PacketPipeline();
+    private static final Consumer[] EMPTY = new Consumer[0];
+    private final Key channelInitListenerKey;
+    private final Set<Channel> channels;
+    private final PacketMetrics metrics;
+    private volatile Consumer[] consumers;
+    private volatile InjectionMode injectionMode;
+    private volatile PacketRateLimiter rateLimiter;
+    private ExecutorService asyncExecutor;
+
+    /**
+     * Creates a PacketPipeline.
+     * Use {@link #getInstance()}, separate pipelines are only created by the {@code PacketReplayHarness} of the test fixtures.
+     */
+    PacketPipeline() {
+        this.channelInitListenerKey = Key.key("mclib_packets", "pipeline_" + Integer.toHexString(System.identityHashCode(this)));
+        this.channels = ConcurrentHashMap.newKeySet();
+        this.metrics = new PacketMetrics(this);
+        this.consumers = EMPTY;
+        this.injectionMode = InjectionMode.PLAYER_JOIN;
+        this.rateLimiter = null;
+        this.asyncExecutor = null;
+    }
+
+    // CONSUMERS
+
+    /**
+     * Attaches a listener registry to the pipeline.
+     * Registries with a lower priority are called first, registries with the same priority are called in attach order.
+     * @param registry registry
+     * @param priority priority
+     */
+    public void attach(PacketListenerRegistry registry, EventPriority priority) {
+        if (registry == null || priority == null) throw new IllegalArgumentException("Arguments cannot be null");
+
+        synchronized (this) {
+            List<Consumer> consumers = new ArrayList<>(Arrays.asList(this.consumers));
+            consumers.removeIf(consumer -> consumer.registry == registry);
+            consumers.add(new Consumer(registry, priority));
+            consumers.sort(Comparator.comparing(Consumer::priority));
+            this.consumers = consumers.toArray(EMPTY);
+        }
+
+        registry.attached(this);
+        if (registry.hasRawFrameListeners()) this.updateFrameHandlers();
+    }
+
+    /**
+     * Detaches a listener registry from the pipeline.
+     * When the last registry has been detached, the handler is removed from all channels.
+     * The injection mode is kept, so in {@link InjectionMode#CHANNEL_INIT} new connections still get the handler
+     * until the mode is set back to {@link InjectionMode#PLAYER_JOIN} (e.g. when the plugin is disabled).
+     * @param registry registry
+     */
+    public void detach(PacketListenerRegistry registry) {
+        boolean last;
+
+        synchronized (this) {
+            List<Consumer> consumers = new ArrayList<>(Arrays.asList(this.consumers));
+            if (!consumers.removeIf(consumer -> consumer.registry == registry)) return;
+            this.consumers = consumers.toArray(EMPTY);
+            last = consumers.isEmpty();
+        }
+
+        registry.detached(this);
+
+        if (!last) {
+            if (registry.hasRawFrameListeners()) this.updateFrameHandlers();
+            return;
+        }
+
+        this.uninjectAll();
+    }
+
+    /**
+     * Returns all attached registries in the order they are called.
+     * @return list of registries
+     */
+    public List<PacketListenerRegistry> getRegistries() {
+        List<PacketListenerRegistry> registries = new ArrayList<>();
+
+        for (Consumer consumer : this.consumers) {
+            registries.add(consumer.registry);
+        }
+
+        return List.copyOf(registries);
+    }
+
+    // INJECTION
+
+    /**
+     * Sets the injection mode.<br/>
+     * In {@link InjectionMode#CHANNEL_INIT}, the handler is added by the server's channel initializer to every new connection,
+     * so no pipeline modifications are done when players join.
+     * Channels that already exist are not affected by changing the mode.
+     * @param injectionMode injection mode
+     */
+    public synchronized void setInjectionMode(InjectionMode injectionMode) {
+        if (injectionMode == null) throw new IllegalArgumentException("Injection mode cannot be null");
+        if (this.injectionMode == injectionMode) return;
+
+        if (injectionMode == InjectionMode.CHANNEL_INIT) {
+            ChannelInitializeListenerHolder.addListener(this.channelInitListenerKey, channel -> this.inject(channel, null));
+        } else {
+            ChannelInitializeListenerHolder.removeListener(this.channelInitListenerKey);
+        }
+
+        this.injectionMode = injectionMode;
+    }
+
+    /**
+     * Returns the injection mode.
+     * @return injection mode
+     */
+    public InjectionMode getInjectionMode() {
+        return this.injectionMode;
+    }
+
+    /**
+     * Injects the handler into the channel if it has not been injected yet.
+     * If the handler already exists, only the player is updated.
+     * @param channel channel
+     * @param player player (can be null if the channel does not belong to a player yet, it is resolved when the connection enters the play phase)
+     */
+    public void inject(Channel channel, Player player) {
+        ChannelPipeline pipeline = channel.pipeline();
+
+        if (pipeline.get(HANDLER_NAME) instanceof PacketChannelHandler handler) {
+            if (player != null) handler.setPlayer(player);
+            return;
+        }
+
+        if (pipeline.get(HANDLER_NAME) != null) return; // injected by another copy of this library
+        if (!(pipeline.get("packet_handler") instanceof Connection connection)) return;
+
+        PacketChannelHandler handler = new PacketChannelHandler(this, connection, player);
+
+        try {
+            pipeline.addBefore("packet_handler", HANDLER_NAME, handler);
+        } catch (IllegalArgumentException | NoSuchElementException e) {
+            return; // injected concurrently or connection already closed
+        }
+
+        if (this.needsFrameHandlers(handler)) PacketFrameHandler.inject(pipeline, handler);
+
+        this.channels.add(channel);
+        channel.closeFuture().addListener(future -> this.channels.remove(channel));
+    }
+
+    /**
+     * Removes the handler from the channel.
+     * @param channel channel
+     */
+    public void uninject(Channel channel) {
+        this.channels.remove(channel);
+
+        if (channel.pipeline().get(HANDLER_NAME) instanceof PacketChannelHandler) {
+
+            PacketFrameHandler.uninject(channel.pipeline());
+
+            try {
+                channel.pipeline().remove(HANDLER_NAME);
+            } catch (NoSuchElementException ignored) {
+                // already removed
+            }
+
+        }
+
+    }
+
+    /**
+     * Removes the handler from all channels it has been injected to.
+     * Also shuts down the executor of the async listeners, running async listeners are interrupted.
+     */
+    public void uninjectAll() {
+
+        for (Channel channel : List.copyOf(this.channels)) {
+            this.uninject(channel);
+        }
+
+        this.shutdownAsyncExecutor();
+    }
+
+    /**
+     * Returns true if the frame handlers of the channel are needed by any feature.
+     * @param handler channel handler
+     * @return needs frame handlers
+     */
+    private boolean needsFrameHandlers(PacketChannelHandler handler) {
+        if (this.metrics.isEnabled() || handler.getCapture() != null) return true;
+
+        for (Consumer consumer : this.consumers) {
+            if (consumer.registry.hasRawFrameListeners()) return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Adds or removes the frame handlers of all channels, depending on if they are currently needed.
+     */
+    void updateFrameHandlers() {
+
+        for (Channel channel : List.copyOf(this.channels)) {
+            this.updateFrameHandlers(channel);
+        }
+
+    }
+
+    /**
+     * Adds or removes the frame handlers of the channel, depending on if they are currently needed.
+     * @param channel channel
+     */
+    private void updateFrameHandlers(Channel channel) {
+        if (!(channel.pipeline().get(HANDLER_NAME) instanceof PacketChannelHandler handler)) return;
+
+        channel.eventLoop().execute(() -> {
+            if (this.needsFrameHandlers(handler)) {
+                PacketFrameHandler.inject(channel.pipeline(), handler);
+            } else {
+                PacketFrameHandler.uninject(channel.pipeline());
+            }
+        });
+
+    }
+
+    // CAPTURE
+
+    /**
+     * Starts capturing the frames of the player's connection into a ring buffer.
+     * If the player is already being captured, the existing capture is returned.
+     * @param player player
+     * @param capacity capacity of the ring buffer in bytes
+     * @return capture, null if the handler has not been injected into the player's channel
+     */
+    public PacketCapture startCapture(Player player, int capacity) {
+        PacketChannelHandler handler = this.getHandler(player);
+        if (handler == null) return null;
+
+        synchronized (handler) {
+            if (handler.getCapture() != null) return handler.getCapture();
+            handler.setCapture(new PacketCapture(player.getUniqueId(), SharedConstants.getProtocolVersion(), capacity));
+        }
+
+        this.updateFrameHandlers(handler.getConnection().channel);
+        return handler.getCapture();
+    }
+
+    /**
+     * Stops capturing the frames of the player's connection.
+     * @param player player
+     * @return the capture that has been stopped, null if the player was not captured
+     */
+    public PacketCapture stopCapture(Player player) {
+        PacketChannelHandler handler = this.getHandler(player);
+        if (handler == null) return null;
+
+        PacketCapture capture;
+
+        synchronized (handler) {
+            capture = handler.getCapture();
+            handler.setCapture(null);
+        }
+
+        this.updateFrameHandlers(handler.getConnection().channel);
+        return capture;
+    }
+
+    /**
+     * Returns the capture of the player.
+     * @param player player
+     * @return capture, null if the player is not captured
+     */
+    public PacketCapture getCapture(Player player) {
+        PacketChannelHandler handler = this.getHandler(player);
+        return handler != null ? handler.getCapture() : null;
+    }
+
+    /**
+     * Returns the channel handler of the player's connection.
+     * @param player player
+     * @return channel handler, null if not injected
+     */
+    private PacketChannelHandler getHandler(Player player) {
+        PlayerConnection connection = ConnectionRegistry.getInstance().get(player);
+        if (connection == null) return null;
+        return connection.getChannel().pipeline().get(HANDLER_NAME) instanceof PacketChannelHandler handler ? handler : null;
+    }
+
+    // DISPATCH
+
+    /**
+     * Dispatches a raw frame to the raw frame listeners of all attached registries.
+     * The packet id is only read if any registry has raw frame listeners.
+     * @param handler channel handler of the connection
+     * @param direction direction
+     * @param frame frame
+     * @return true if the frame should be forwarded, false if it has been dropped
+     */
+    boolean dispatchFrame(PacketChannelHandler handler, PacketDirection direction, ByteBuf frame) {
+        Consumer[] consumers = this.consumers;
+        long peeked = -2;
+        int protocol = -1;
+        RawFrame rawFrame = null;
+
+        try {
+
+            for (Consumer consumer : consumers) {
+                if (!consumer.registry.hasRawFrameListeners()) continue;
+
+                if (peeked == -2) {
+                    peeked = RawFrame.peekPacketId(frame);
+                    protocol = handler.getProtocol();
+                }
+
+                if (peeked < 0) return true;
+
+                int packetId = (int) peeked;
+                RegisteredRawFrameListener[] listeners = consumer.registry.getRawFrameListeners(direction, protocol, packetId);
+                if (listeners.length == 0) continue;
+
+                if (rawFrame == null) rawFrame = handler.acquireFrame(direction, protocol, frame, packetId, frame.readerIndex() + (int) (peeked >>> 32));
+                consumer.registry.callRawFrameListeners(listeners, rawFrame);
+            }
+
+            return rawFrame == null || !rawFrame.isDropped();
+        } finally {
+            if (rawFrame != null) handler.releaseFrame(rawFrame);
+        }
+
+    }
+
+    /**
+     * Dispatches a packet to all attached registries and the bukkit event listeners.
+     * If nobody listens for the packet class, the message is returned without creating or resetting an event.
+     * @param handler channel handler the packet passes through
+     * @param direction direction
+     * @param msg message from the pipeline
+     * @return message that should be forwarded, null if the packet has been cancelled
+     */
+    Object dispatch(PacketChannelHandler handler, PacketDirection direction, Object msg) {
+        if (!(msg instanceof Packet<?> packet)) return msg;
+
+        Consumer[] consumers = this.consumers;
+        Class<?> packetClass = packet.getClass();
+        PacketTypeMetrics typeMetrics = null;
+
+        if (this.metrics.isEnabled()) {
+            typeMetrics = this.metrics.getOrCreate(direction, packetClass);
+            typeMetrics.recordPacket();
+
+            if (direction == PacketDirection.SERVERBOUND) {
+                typeMetrics.recordBytes(handler.takeInboundFrameBytes());
+            } else {
+                handler.setOutboundMetrics(typeMetrics);
+            }
+
+        }
+
+        boolean callBukkit = PacketEvent.getHandlerList(direction).getRegisteredListeners().length > 0;
+        PacketEvent event = null;
+
+        // the event is only created when the first listener wants the packet, the filters are evaluated once per packet
+        try {
+            long totalNanos = 0;
+
+            for (Consumer consumer : consumers) {
+                RegisteredPacketListener<?>[] listeners = consumer.registry.getListeners(direction, packetClass);
+                if (listeners.length == 0) continue;
+
+                CompiledPacketFilters filters = null;
+                long matches = 0;
+
+                if (consumer.registry.hasFilters()) {
+                    filters = handler.getFilters(listeners);
+                    matches = filters.match(packet);
+                    if (matches == 0) continue;
+                }
+
+                if (event == null) event = handler.acquireEvent(direction, handler.getPlayer(), packet);
+
+                if (typeMetrics == null) {
+                    consumer.registry.callListeners(listeners, filters, matches, event);
+                    continue;
+                }
+
+                long start = System.nanoTime();
+                consumer.registry.callListeners(listeners, filters, matches, event);
+                long nanos = System.nanoTime() - start;
+                this.metrics.recordListenerTime(consumer.registry.getName(), nanos);
+                totalNanos += nanos;
+            }
+
+            if (callBukkit) {
+                if (event == null) event = handler.acquireEvent(direction, handler.getPlayer(), packet);
+
+                if (typeMetrics == null) {
+                    Bukkit.getPluginManager().callEvent(event);
+                } else {
+                    long start = System.nanoTime();
+                    Bukkit.getPluginManager().callEvent(event);
+                    long nanos = System.nanoTime() - start;
+                    this.metrics.recordListenerTime(PacketMetrics.BUKKIT_LISTENERS, nanos);
+                    totalNanos += nanos;
+                }
+
+            }
+
+            if (event == null) return msg;
+
+            if (typeMetrics != null) {
+                typeMetrics.getListenerTime().record(totalNanos);
+                if (event.isCancelled()) typeMetrics.recordCancelled();
+                else if (event.getReplacement() != null) typeMetrics.recordReplaced();
+            }
+
+            if (event.isCancelled()) return null;
+            if (event.getReplacement() != null) return event.getReplacement();
+            return msg;
+        } finally {
+            if (event != null) handler.releaseEvent(event);
+        }
+
+    }
+
+    /**
+     * Calls the async listeners of all attached registries on a virtual thread.
+     * The filters are evaluated on the event loop before the packet is handed over, so they are evaluated once per packet.
+     * The event is not pooled, so the listeners can keep it until they return.
+     * Listeners that are still running when the timeout is reached are interrupted.
+     * @param handler channel handler the packet passes through
+     * @param direction direction
+     * @param packet packet (after the sync listeners)
+     * @return future that completes with the event when all listeners have returned, or with null when the timeout has been reached (the longest timeout of all matching listeners),
+     * null if no async listener wants the packet
+     */
+    CompletableFuture<PacketEvent> dispatchAsync(PacketChannelHandler handler, PacketDirection direction, Packet<?> packet) {
+        Consumer[] consumers = this.consumers;
+        Class<?> packetClass = packet.getClass();
+        RegisteredPacketListener<?>[][] listenerArrays = null;
+        CompiledPacketFilters[] filterArrays = null;
+        long[] matches = null;
+        long timeoutNanos = -1;
+
+        for (int i = 0; i < consumers.length; i++) {
+            RegisteredPacketListener<?>[] listeners = consumers[i].registry.getAsyncListeners(direction, packetClass);
+            if (listeners.length == 0) continue;
+
+            CompiledPacketFilters filters = null;
+            long listenerMatches = 0;
+
+            if (consumers[i].registry.hasFilters()) {
+                filters = handler.getFilters(listeners);
+                listenerMatches = filters.match(packet);
+                if (listenerMatches == 0) continue;
+            }
+
+            if (listenerArrays == null) {
+                listenerArrays = new RegisteredPacketListener<?>[consumers.length][];
+                filterArrays = new CompiledPacketFilters[consumers.length];
+                matches = new long[consumers.length];
+            }
+
+            listenerArrays[i] = listeners;
+            filterArrays[i] = filters;
+            matches[i] = listenerMatches;
+
+            for (int j = 0; j < listeners.length; j++) {
+                if (filters == null || filters.isMatch(listenerMatches, j, packet)) timeoutNanos = Math.max(timeoutNanos, listeners[j].getAsyncTimeoutNanos());
+            }
+
+        }
+
+        if (listenerArrays == null) return null;
+
+        PacketEvent event = PacketEvent.create(direction, handler.getPlayer(), packet);
+        RegisteredPacketListener<?>[][] calledListeners = listenerArrays;
+        CompiledPacketFilters[] calledFilters = filterArrays;
+        long[] calledMatches = matches;
+
+        CompletableFuture<PacketEvent> future = new CompletableFuture<>();
+
+        Future<?> task;
+
+        try {
+            task = this.getAsyncExecutor().submit(() -> {
+
+                try {
+
+                    for (int i = 0; i < consumers.length; i++) {
+                        Consumer consumer = consumers[i];
+                        RegisteredPacketListener<?>[] listeners = calledListeners[i];
+                        if (listeners == null) continue;
+
+                        long start = System.nanoTime();
+                        consumer.registry.callListeners(listeners, calledFilters[i], calledMatches[i], event);
+                        if (this.metrics.isEnabled()) this.metrics.recordListenerTime(consumer.registry.getName(), System.nanoTime() - start);
+                    }
+
+                    future.complete(event);
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+
+            });
+        } catch (RejectedExecutionException e) {
+            // the executor has been shut down concurrently, the packet is not held
+            return null;
+        }
+
+        // listeners that are still running after the timeout are interrupted, the packet has already been forwarded
+        future.completeOnTimeout(null, timeoutNanos, TimeUnit.NANOSECONDS).thenAccept(result -> {
+            if (result == null) task.cancel(true);
+        });
+
+        return future;
+    }
+
+    /**
+     * Returns the executor the async listeners run on, creating it if it has been shut down.
+     * @return executor
+     */
+    private synchronized ExecutorService getAsyncExecutor() {
+        if (this.asyncExecutor == null) this.asyncExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        return this.asyncExecutor;
+    }
+
+    /**
+     * Shuts down the executor of the async listeners and interrupts the listeners that are still running.
+     * Packets held for them are forwarded by the timeout or when the handler is removed.
+     */
+    private synchronized void shutdownAsyncExecutor() {
+        if (this.asyncExecutor == null) return;
+        this.asyncExecutor.shutdownNow();
+        this.asyncExecutor = null;
+    }
+
+    // RATE LIMIT
+
+    /**
+     * Sets the rate limiter for serverbound packets.
+     * The limiter is applied on the event loop of each channel before any listener is called.
+     * It only applies to channels the handler has been injected to, so at least one {@link PacketEventHandler} has to exist.
+     * @param rateLimiter rate limiter, null to disable rate limiting
+     */
+    public void setRateLimiter(PacketRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Returns the rate limiter for serverbound packets.
+     * @return rate limiter, null if disabled
+     */
+    public PacketRateLimiter getRateLimiter() {
+        return this.rateLimiter;
+    }
+
+    // GETTER
+
+    /**
+     * Returns the traffic metrics of this pipeline.
+     * @return metrics
+     */
+    public PacketMetrics getMetrics() {
+        return this.metrics;
+    }
+
+    // INSTANCE
+
+    /**
+     * Returns the shared packet pipeline.
+     * @return packet pipeline
+     */
+    public static PacketPipeline getInstance() {
+        return INSTANCE;
+    }
+
+    private record Consumer(PacketListenerRegistry registry, EventPriority priority) {}
+
+}
@@ -0,0 +1,208 @@
+package net.chaossquad.mclib.packets.packetevents;
+
+import net.minecraft.network.protocol.Packet;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Flood protection for serverbound packets.<br/>
+ * Limits are configured per packet class (subclasses are included and share the limit, e.g. all variants of {@code ServerboundMovePlayerPacket}).
+ * Each channel has its own token bucket per limit, which is only accessed by the channel's event loop,
+ * so packets are rate limited before listeners are called and without involving the main thread.
+ * Set the limiter with {@link PacketPipeline#setRateLimiter(PacketRateLimiter)}.
+ * <pre>{@code
+ * PacketRateLimiter limiter = new PacketRateLimiter();
+ * limiter.setLimit(ServerboundInteractPacket.class, new PacketRateLimiter.Limit(20, 40, RateLimitPolicy.DROP));
+ * limiter.setLimit(ServerboundMovePlayerPacket.class, new PacketRateLimiter.Limit(40, 100, RateLimitPolicy.KICK));
+ * PacketPipeline.getInstance().setRateLimiter(limiter);
+ * }</pre>
+ */
+public final class PacketRateLimiter {
+    private static final Limit NONE = new Limit(Double.MAX_VALUE, Integer.MAX_VALUE, RateLimitPolicy.DROP);
+    private final LongAdder dropped;
+    private final LongAdder delayed;
+    private final LongAdder kicked;
+    private volatile Map<Class<?>, Limit> limits;
+    private volatile Map<Class<?>, Limit> cache;
+
+    /**
+     * Creates a PacketRateLimiter without any limits.
+     */
+    public PacketRateLimiter() {
+        this.dropped = new LongAdder();
+        this.delayed = new LongAdder();
+        this.kicked = new LongAdder();
+        this.limits = Map.of();
+        this.cache = new ConcurrentHashMap<>();
+    }
+
+    // LIMITS
+
+    /**
+     * Sets the limit of a packet class.
+     * Existing buckets of the packet class are reset.
+     * @param packetClass packet class (subclasses are included)
+     * @param limit limit, null to remove the limit
+     */
+    public synchronized void setLimit(Class<? extends Packet<?>> packetClass, Limit limit) {
+        if (packetClass == null) throw new IllegalArgumentException("Packet class cannot be null");
+
+        Map<Class<?>, Limit> limits = new HashMap<>(this.limits);
+
+        if (limit != null) {
+            limits.put(packetClass, limit);
+        } else {
+            limits.remove(packetClass);
+        }
+
+        this.limits = Map.copyOf(limits);
+        this.cache = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Returns the configured limits.
+     * @return map of packet class to limit
+     */
+    public Map<Class<?>, Limit> getLimits() {
+        return this.limits;
+    }
+
+    /**
+     * Returns the limit that applies to the packet class.
+     * The most specific configured superclass wins.
+     * @param packetClass packet class
+     * @return limit, null if the packet class is not limited
+     */
+    Limit getLimit(Class<?> packetClass) {
+        Map<Class<?>, Limit> cache = this.cache;
+
+        Limit limit = cache.get(packetClass);
+        if (limit == null) limit = cache.computeIfAbsent(packetClass, this::findLimit);
+
+        return limit != NONE ? limit : null;
+    }
+
+    private Limit findLimit(Class<?> packetClass) {
+
+        for (Class<?> clazz = packetClass; clazz != null; clazz = clazz.getSuperclass()) {
+            Limit limit = this.limits.get(clazz);
+            if (limit != null) return limit;
+        }
+
+        return NONE;
+    }
+
+    // COUNTERS
+
+    /**
+     * Counts a packet that has been handled by the policy.
+     * @param policy policy
+     */
+    void record(RateLimitPolicy policy) {
+        switch (policy) {
+            case DROP -> this.dropped.increment();
+            case DELAY -> this.delayed.increment();
+            case KICK -> this.kicked.increment();
+        }
+    }
+
+    /**
+     * Returns the number of dropped packets.
+     * @return dropped packets
+     */
+    public long getDropped() {
+        return this.dropped.sum();
+    }
+
+    /**
+     * Returns the number of delayed packets.
+     * @return delayed packets
+     */
+    public long getDelayed() {
+        return this.delayed.sum();
+    }
+
+    /**
+     * Returns the number of players that have been kicked.
+     * @return kicks
+     */
+    public long getKicked() {
+        return this.kicked.sum();
+    }
+
+    /**
+     * Resets the counters.
+     */
+    public void resetCounters() {
+        this.dropped.reset();
+        this.delayed.reset();
+        this.kicked.reset();
+    }
+
+    // LIMIT
+
+    /**
+     * Limit of a packet class.
+     * @param packetsPerSecond rate the bucket is refilled with
+     * @param burst size of the bucket (packets that can be sent at once)
+     * @param policy what happens with packets that exceed the limit
+     */
+    public record Limit(double packetsPerSecond, int burst, RateLimitPolicy policy) {
+
+        /**
+         * Creates a Limit.
+         * @param packetsPerSecond rate the bucket is refilled with
+         * @param burst size of the bucket (packets that can be sent at once)
+         * @param policy what happens with packets that exceed the limit
+         */
+        public Limit {
+            if (packetsPerSecond <= 0 || burst < 1) throw new IllegalArgumentException("Rate and burst must be positive");
+            if (policy == null) throw new IllegalArgumentException("Policy cannot be null");
+        }
+
+    }
+
+    // BUCKET
+
+    /**
+     * Token bucket of one channel and limit.
+     * Only accessed by the event loop of the channel.
+     */
+    static final class Bucket {
+        private final Limit limit;
+        private double tokens;
+        private long lastNanos;
+
+        Bucket(Limit limit) {
+            this.limit = limit;
+            this.tokens = limit.burst();
+            this.lastNanos = System.nanoTime();
+        }
+
+        /**
+         * Takes a token for a packet.
+         * For {@link RateLimitPolicy#DELAY}, the bucket can go into debt up to the burst size.
+         * @return 0 if the packet can pass, the nanoseconds the packet has to be delayed, or -1 if the packet exceeds the limit
+         */
+        long take() {
+            long now = System.nanoTime();
+            this.tokens = Math.min(this.limit.burst(), this.tokens + (now - this.lastNanos) * this.limit.packetsPerSecond() / 1_000_000_000.0);
+            this.lastNanos = now;
+
+            if (this.tokens >= 1) {
+                this.tokens--;
+                return 0;
+            }
+
+            if (this.limit.policy() != RateLimitPolicy.DELAY || this.tokens - 1 < -this.limit.burst()) return -1;
+
+            this.tokens--;
+            return Math.max(1, (long) (-this.tokens * 1_000_000_000.0 / this.limit.packetsPerSecond()));
+        }
+
+    }
+
+}
@@ -0,0 +1,115 @@
+package net.chaossquad.mclib.packets.packetevents;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Traffic metrics of one packet class in one direction.
+ * Collected by {@link PacketMetrics}.
+ */
+public final class PacketTypeMetrics {
+    private final PacketDirection direction;
+    private final Class<?> packetClass;
+    private final LongAdder count;
+    private final LongAdder cancelled;
+    private final LongAdder replaced;
+    private final LongAdder bytes;
+    private final LatencyHistogram listenerTime;
+
+    PacketTypeMetrics(PacketDirection direction, Class<?> packetClass) {
+        this.direction = direction;
+        this.packetClass = packetClass;
+        this.count = new LongAdder();
+        this.cancelled = new LongAdder();
+        this.replaced = new LongAdder();
+        this.bytes = new LongAdder();
+        this.listenerTime = new LatencyHistogram();
+    }
+
+    // RECORDING
+
+    void recordPacket() {
+        this.count.increment();
+    }
+
+    void recordCancelled() {
+        this.cancelled.increment();
+    }
+
+    void recordReplaced() {
+        this.replaced.increment();
+    }
+
+    void recordBytes(long bytes) {
+        this.bytes.add(bytes);
+    }
+
+    void reset() {
+        this.count.reset();
+        this.cancelled.reset();
+        this.replaced.reset();
+        this.bytes.reset();
+        this.listenerTime.reset();
+    }
+
+    // GETTER
+
+    /**
+     * Returns the direction.
+     * @return direction
+     */
+    public PacketDirection getDirection() {
+        return this.direction;
+    }
+
+    /**
+     * Returns the packet class.
+     * @return packet class
+     */
+    public Class<?> getPacketClass() {
+        return this.packetClass;
+    }
+
+    /**
+     * Returns the number of packets that passed the pipeline.
+     * @return count
+     */
+    public long getCount() {
+        return this.count.sum();
+    }
+
+    /**
+     * Returns the number of packets that have been cancelled by listeners.
+     * @return cancelled count
+     */
+    public long getCancelled() {
+        return this.cancelled.sum();
+    }
+
+    /**
+     * Returns the number of packets that have been replaced by listeners.
+     * @return replaced count
+     */
+    public long getReplaced() {
+        return this.replaced.sum();
+    }
+
+    /**
+     * Returns the estimated number of bytes.
+     * Measured from the uncompressed frames of the channel and attributed to the packet that caused them.
+     * Only counted while the frame handlers are installed, see {@link PacketMetrics}.
+     * @return bytes
+     */
+    public long getBytes() {
+        return this.bytes.sum();
+    }
+
+    /**
+     * Returns the histogram of the time spent in listeners for this packet class.
+     * Only packets that had listeners are recorded.
+     * @return listener time histogram
+     */
+    public LatencyHistogram getListenerTime() {
+        return this.listenerTime;
+    }
+
+}
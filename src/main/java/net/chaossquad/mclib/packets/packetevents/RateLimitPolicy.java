@@ -0,0 +1,24 @@
+package net.chaossquad.mclib.packets.packetevents;
+
+/**
+ * Defines what the {@link PacketRateLimiter} does with serverbound packets that exceed their limit.
+ */
+public enum RateLimitPolicy {
+
+    /**
+     * The packet is dropped before any listener or the server sees it.
+     */
+    DROP,
+
+    /**
+     * The packet and all following packets of the channel are held until the bucket has been refilled.
+     * If the player keeps sending faster than the limit allows and the backlog exceeds the burst size, packets are dropped.
+     */
+    DELAY,
+
+    /**
+     * The player is disconnected.
+     */
+    KICK
+
+}
@@ -0,0 +1,319 @@
+package net.chaossquad.mclib.packets.packetevents;
+
+import io.netty.buffer.ByteBuf;
+import net.minecraft.network.ConnectionProtocol;
+import org.bukkit.entity.Player;
+
+import java.util.UUID;
+
+/**
+ * Read-only view of a raw frame (packet id and payload, uncompressed) that is passed to {@link RawFrameListener}s.<br/>
+ * The payload is read with a cursor that starts behind the packet id.
+ * Reading does not modify the underlying buffer, and no packet object is created.<br/>
+ * <b>Frames are reused:</b> Each channel has one frame object per direction.
+ * A frame is only valid during the listener call and must not be stored or passed to other threads.
+ */
+public final class RawFrame {
+    private static final ConnectionProtocol[] PROTOCOLS = ConnectionProtocol.values();
+    private Player player;
+    private PacketDirection direction;
+    private int protocol;
+    private ByteBuf buffer;
+    private int packetId;
+    private int payloadStart;
+    private int cursor;
+    private boolean dropped;
+
+    RawFrame() {
+        this.reset(null, null, -1, null, -1, 0);
+    }
+
+    /**
+     * Resets the frame so that it can be reused.
+     * @param player player
+     * @param direction direction
+     * @param protocol protocol ordinal
+     * @param buffer frame buffer
+     * @param packetId packet id
+     * @param payloadStart index of the first byte after the packet id
+     */
+    void reset(Player player, PacketDirection direction, int protocol, ByteBuf buffer, int packetId, int payloadStart) {
+        this.player = player;
+        this.direction = direction;
+        this.protocol = protocol;
+        this.buffer = buffer;
+        this.packetId = packetId;
+        this.payloadStart = payloadStart;
+        this.cursor = payloadStart;
+        this.dropped = false;
+    }
+
+    /**
+     * Moves the cursor back to the start of the payload.
+     */
+    void rewind() {
+        this.cursor = this.payloadStart;
+    }
+
+    // FRAME
+
+    /**
+     * Returns the player.
+     * @return player, null if the channel does not belong to a player yet
+     */
+    public Player getPlayer() {
+        return this.player;
+    }
+
+    /**
+     * Returns the direction.
+     * @return direction
+     */
+    public PacketDirection getDirection() {
+        return this.direction;
+    }
+
+    /**
+     * Returns the protocol phase of the connection.
+     * @return protocol, null if unknown
+     */
+    public ConnectionProtocol getProtocol() {
+        return this.protocol >= 0 && this.protocol < PROTOCOLS.length ? PROTOCOLS[this.protocol] : null;
+    }
+
+    /**
+     * Returns the packet id.
+     * @return packet id
+     */
+    public int getPacketId() {
+        return this.packetId;
+    }
+
+    /**
+     * Returns the size of the frame including the packet id.
+     * @return bytes
+     */
+    public int getLength() {
+        return this.buffer.readableBytes();
+    }
+
+    /**
+     * Returns the size of the payload.
+     * @return bytes
+     */
+    public int getPayloadLength() {
+        return this.buffer.writerIndex() - this.payloadStart;
+    }
+
+    /**
+     * Returns a read-only copy of the frame buffer that shares its content.
+     * Allocates a wrapper object, prefer the read methods of this class.
+     * @return read-only buffer
+     */
+    public ByteBuf asReadOnly() {
+        return this.buffer.asReadOnly();
+    }
+
+    /**
+     * Copies the frame.
+     * @return frame bytes (packet id and payload)
+     */
+    public byte[] copy() {
+        byte[] bytes = new byte[this.buffer.readableBytes()];
+        this.buffer.getBytes(this.buffer.readerIndex(), bytes);
+        return bytes;
+    }
+
+    // DROP
+
+    /**
+     * Drops the frame.
+     * Dropped inbound frames are not decoded, dropped outbound frames are not sent.
+     */
+    public void drop() {
+        this.dropped = true;
+    }
+
+    /**
+     * Returns true if the frame has been dropped.
+     * @return dropped
+     */
+    public boolean isDropped() {
+        return this.dropped;
+    }
+
+    // CURSOR
+
+    /**
+     * Returns the position of the cursor in the payload.
+     * @return position
+     */
+    public int getCursor() {
+        return this.cursor - this.payloadStart;
+    }
+
+    /**
+     * Sets the position of the cursor in the payload.
+     * @param position position
+     */
+    public void setCursor(int position) {
+        if (position < 0 || position > this.getPayloadLength()) throw new IndexOutOfBoundsException("Cursor out of bounds: " + position);
+        this.cursor = this.payloadStart + position;
+    }
+
+    /**
+     * Returns the number of bytes behind the cursor.
+     * @return bytes
+     */
+    public int readableBytes() {
+        return this.buffer.writerIndex() - this.cursor;
+    }
+
+    /**
+     * Skips bytes.
+     * @param bytes bytes
+     */
+    public void skip(int bytes) {
+        this.setCursor(this.getCursor() + bytes);
+    }
+
+    /**
+     * Reads a byte.
+     * @return value
+     */
+    public byte readByte() {
+        this.check(1);
+        return this.buffer.getByte(this.cursor++);
+    }
+
+    /**
+     * Reads an unsigned byte.
+     * @return value
+     */
+    public int readUnsignedByte() {
+        return this.readByte() & 0xFF;
+    }
+
+    /**
+     * Reads a boolean.
+     * @return value
+     */
+    public boolean readBoolean() {
+        return this.readByte() != 0;
+    }
+
+    /**
+     * Reads a short.
+     * @return value
+     */
+    public short readShort() {
+        this.check(Short.BYTES);
+        short value = this.buffer.getShort(this.cursor);
+        this.cursor += Short.BYTES;
+        return value;
+    }
+
+    /**
+     * Reads an int.
+     * @return value
+     */
+    public int readInt() {
+        this.check(Integer.BYTES);
+        int value = this.buffer.getInt(this.cursor);
+        this.cursor += Integer.BYTES;
+        return value;
+    }
+
+    /**
+     * Reads a long.
+     * @return value
+     */
+    public long readLong() {
+        this.check(Long.BYTES);
+        long value = this.buffer.getLong(this.cursor);
+        this.cursor += Long.BYTES;
+        return value;
+    }
+
+    /**
+     * Reads a float.
+     * @return value
+     */
+    public float readFloat() {
+        return Float.intBitsToFloat(this.readInt());
+    }
+
+    /**
+     * Reads a double.
+     * @return value
+     */
+    public double readDouble() {
+        return Double.longBitsToDouble(this.readLong());
+    }
+
+    /**
+     * Reads a VarInt.
+     * @return value
+     */
+    public int readVarInt() {
+        int value = 0;
+
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = this.readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+
+        throw new IllegalStateException("VarInt too big");
+    }
+
+    /**
+     * Reads a VarLong.
+     * @return value
+     */
+    public long readVarLong() {
+        long value = 0;
+
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = this.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+
+        throw new IllegalStateException("VarLong too big");
+    }
+
+    /**
+     * Reads a uuid (two longs).
+     * @return value
+     */
+    public UUID readUUID() {
+        return new UUID(this.readLong(), this.readLong());
+    }
+
+    private void check(int bytes) {
+        if (this.readableBytes() < bytes) throw new IndexOutOfBoundsException("Not enough bytes in frame");
+    }
+
+    // PACKET ID
+
+    /**
+     * Reads the packet id at the reader index of a frame.
+     * @param frame frame
+     * @return packet id in the lower 32 bits and its size in bytes in the upper 32 bits, -1 if the frame does not start with a valid VarInt
+     */
+    static long peekPacketId(ByteBuf frame) {
+        int index = frame.readerIndex();
+        int end = frame.writerIndex();
+        int value = 0;
+
+        for (int i = 0; i < 5 && index + i < end; i++) {
+            byte b = frame.getByte(index + i);
+            value |= (b & 0x7F) << (7 * i);
+            if ((b & 0x80) == 0) return ((long) (i + 1) << 32) | (value & 0xFFFFFFFFL);
+        }
+
+        return -1;
+    }
+
+}
@@ -0,0 +1,19 @@
+package net.chaossquad.mclib.packets.packetevents;
+
+/**
+ * A listener for raw frames of a specific packet id.
+ * Registered at a {@link PacketListenerRegistry} with {@link PacketListenerRegistry#registerRawFrame(PacketDirection, net.minecraft.network.ConnectionProtocol, int, RawFrameListener)}.
+ * Listeners are called on the netty event loop of the player's connection, so they should not block.
+ * The frame is reused for the next frame of the channel and must not be stored (see {@link RawFrame}).
+ */
+@FunctionalInterface
+public interface RawFrameListener {
+
+    /**
+     * Called when a frame with the registered packet id is received or is about to be sent.
+     * The frame can be dropped with {@link RawFrame#drop()}.
+     * @param frame frame
+     */
+    void onFrame(RawFrame frame);
+
+}
@@ -0,0 +1,133 @@
+package net.chaossquad.mclib.packets.packetevents;
+
+import net.minecraft.network.protocol.Packet;
+import org.bukkit.event.EventPriority;
+
+import java.time.Duration;
+
+/**
+ * A {@link PacketListener} that has been registered at a {@link PacketListenerRegistry}.
+ * Can be used to unregister the listener again.
+ * @param <P> packet type
+ */
+public final class RegisteredPacketListener<P extends Packet<?>> {
+    private final PacketListenerRegistry registry;
+    private final PacketDirection direction;
+    private final Class<P> packetClass;
+    private final EventPriority priority;
+    private final PacketListener<P> listener;
+    private final PacketFilter<P> filter;
+    private final long asyncTimeoutNanos;
+
+    RegisteredPacketListener(PacketListenerRegistry registry, PacketDirection direction, Class<P> packetClass, EventPriority priority, PacketListener<P> listener, PacketFilter<P> filter, long asyncTimeoutNanos) {
+        this.registry = registry;
+        this.direction = direction;
+        this.packetClass = packetClass;
+        this.priority = priority;
+        this.listener = listener;
+        this.filter = filter;
+        this.asyncTimeoutNanos = asyncTimeoutNanos;
+    }
+
+    /**
+     * Calls the listener.
+     * @param event event
+     */
+    @SuppressWarnings("unchecked")
+    void call(PacketEvent event) {
+        this.listener.onPacket(event, (P) event.getPacket());
+    }
+
+    /**
+     * Returns true if this listener should be called for the specified packet class.
+     * @param direction direction
+     * @param packetClass packet class
+     * @return matches
+     */
+    boolean matches(PacketDirection direction, Class<?> packetClass) {
+        return this.direction == direction && this.packetClass.isAssignableFrom(packetClass);
+    }
+
+    /**
+     * Removes the listener from its registry.
+     */
+    public void unregister() {
+        this.registry.unregister(this);
+    }
+
+    // GETTER
+
+    /**
+     * Returns the registry.
+     * @return registry
+     */
+    public PacketListenerRegistry getRegistry() {
+        return this.registry;
+    }
+
+    /**
+     * Returns the direction.
+     * @return direction
+     */
+    public PacketDirection getDirection() {
+        return this.direction;
+    }
+
+    /**
+     * Returns the packet class.
+     * Subclasses of this class are also passed to the listener.
+     * @return packet class
+     */
+    public Class<P> getPacketClass() {
+        return this.packetClass;
+    }
+
+    /**
+     * Returns the priority.
+     * @return priority
+     */
+    public EventPriority getPriority() {
+        return this.priority;
+    }
+
+    /**
+     * Returns the listener.
+     * @return listener
+     */
+    public PacketListener<P> getListener() {
+        return this.listener;
+    }
+
+    /**
+     * Returns the filter of the listener.
+     * @return filter, null if the listener gets all packets of its class
+     */
+    public PacketFilter<P> getFilter() {
+        return this.filter;
+    }
+
+    /**
+     * Returns true if the listener has been registered with {@link PacketListenerRegistry#registerAsync(PacketDirection, Class, EventPriority, Duration, PacketListener)}.
+     * @return async
+     */
+    public boolean isAsync() {
+        return this.asyncTimeoutNanos >= 0;
+    }
+
+    /**
+     * Returns the time the packet is held at most for this listener.
+     * @return timeout, null for sync listeners
+     */
+    public Duration getAsyncTimeout() {
+        return this.asyncTimeoutNanos >= 0 ? Duration.ofNanos(this.asyncTimeoutNanos) : null;
+    }
+
+    /**
+     * Returns the async timeout in nanoseconds.
+     * @return timeout, -1 for sync listeners
+     */
+    long getAsyncTimeoutNanos() {
+        return this.asyncTimeoutNanos;
+    }
+
+}
@@ -0,0 +1,92 @@
+package net.chaossquad.mclib.packets.packetevents;
+
+import net.minecraft.network.ConnectionProtocol;
+
+/**
+ * A {@link RawFrameListener} that has been registered at a {@link PacketListenerRegistry}.
+ * Can be used to unregister the listener again.
+ */
+public final class RegisteredRawFrameListener {
+    private final PacketListenerRegistry registry;
+    private final PacketDirection direction;
+    private final ConnectionProtocol protocol;
+    private final int packetId;
+    private final RawFrameListener listener;
+
+    RegisteredRawFrameListener(PacketListenerRegistry registry, PacketDirection direction, ConnectionProtocol protocol, int packetId, RawFrameListener listener) {
+        this.registry = registry;
+        this.direction = direction;
+        this.protocol = protocol;
+        this.packetId = packetId;
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the key of the listener in the lookup table of the registry.
+     * @return key
+     */
+    long key() {
+        return key(this.direction, this.protocol.ordinal(), this.packetId);
+    }
+
+    /**
+     * Returns the lookup key of a frame.
+     * @param direction direction
+     * @param protocol protocol ordinal
+     * @param packetId packet id
+     * @return key
+     */
+    static long key(PacketDirection direction, int protocol, int packetId) {
+        return ((long) direction.ordinal() << 48) | ((long) (protocol & 0xFFFF) << 32) | (packetId & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Removes the listener from its registry.
+     */
+    public void unregister() {
+        this.registry.unregisterRawFrame(this);
+    }
+
+    // GETTER
+
+    /**
+     * Returns the registry.
+     * @return registry
+     */
+    public PacketListenerRegistry getRegistry() {
+        return this.registry;
+    }
+
+    /**
+     * Returns the direction.
+     * @return direction
+     */
+    public PacketDirection getDirection() {
+        return this.direction;
+    }
+
+    /**
+     * Returns the protocol phase.
+     * @return protocol
+     */
+    public ConnectionProtocol getProtocol() {
+        return this.protocol;
+    }
+
+    /**
+     * Returns the packet id.
+     * @return packet id
+     */
+    public int getPacketId() {
+        return this.packetId;
+    }
+
+    /**
+     * Returns the listener.
+     * @return listener
+     */
+    public RawFrameListener getListener() {
+        return this.listener;
+    }
+
+}
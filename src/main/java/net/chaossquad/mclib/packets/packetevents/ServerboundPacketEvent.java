@@ -2,20 +2,16 @@ package net.chaossquad.mclib.packets.packetevents;
 
 import net.minecraft.network.protocol.Packet;
 import org.bukkit.entity.Player;
-import org.bukkit.event.Cancellable;
-import org.bukkit.event.Event;
 import org.bukkit.event.HandlerList;
 import org.jetbrains.annotations.ApiStatus;
 
 /**
- * This event is fired by {@link PacketEventHandler} when a serverbound NMS packet is received from a player.
+ * This event is fired by {@link PacketEventHandler} when a NMS packet is sent to a player.<br/>
+ * Despite its name, the event is fired for clientbound packets, like in the first versions of this library.
+ * The name is kept so that existing listeners keep working, use {@link #getDirection()} to check the direction.
  */
-public class ServerboundPacketEvent extends Event implements Cancellable {
+public class ServerboundPacketEvent extends PacketEvent {
     private static final HandlerList handlers = new HandlerList();
-    private final Player player;
-    private final Packet<?> packet;
-    private boolean cancelled;
-    private Packet<?> replacement;
 
     /**
      * Creates a ServerboundPacketEvent.
@@ -24,53 +20,16 @@ public class ServerboundPacketEvent extends Event implements Cancellable {
      */
     @ApiStatus.Internal
     public ServerboundPacketEvent(Player player, Packet<?> packet) {
-        super(true);
-        this.player = player;
-        this.packet = packet;
-        this.cancelled = false;
-        this.replacement = null;
+        super(player, packet);
     }
 
     /**
-     * Returns the player
-     * @return player
+     * Returns {@link PacketDirection#CLIENTBOUND}.
+     * @return direction
      */
-    public Player getPlayer() {
-        return this.player;
-    }
-
-    /**
-     * Returns the packet.
-     * @return packet
-     */
-    public Packet<?> getPacket() {
-        return this.packet;
-    }
-
-    @Override
-    public boolean isCancelled() {
-        return this.cancelled;
-    }
-
     @Override
-    public void setCancelled(boolean b) {
-        this.cancelled = b;
-    }
-
-    /**
-     * Get the replacement packet.
-     * @return replacement packet
-     */
-    public Packet<?> getReplacement() {
-        return this.replacement;
-    }
-
-    /**
-     * Set a packet to replace the current packet with.
-     * @param replacement replacement packet.
-     */
-    public void setReplacement(Packet<?> replacement) {
-        this.replacement = replacement;
+    public PacketDirection getDirection() {
+        return PacketDirection.CLIENTBOUND;
     }
 
     @Override
@@ -0,0 +1,413 @@
+package net.chaossquad.mclib.packets.packetevents;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+import net.minecraft.network.protocol.Packet;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventPriority;
+
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Offline harness for benchmarking and testing packet listeners without a running server.<br/>
+ * Builds one netty {@link EmbeddedChannel} per simulated player with the same {@link PacketChannelHandler} the {@link PacketPipeline} injects,
+ * placed between stand-ins of the frame and packet handlers of a real connection.
+ * Packets are replayed through these channels at full speed and the harness reports throughput and the time spent in every listener.<br/>
+ * The harness uses its own pipeline, so registries attached to it are not called for real connections.
+ * The listeners of an attached registry are copied when it is attached, listeners registered or unregistered later are not replayed.
+ * Bukkit event listeners are not called, because there is no server.
+ * Registries with raw frame listeners or async listeners are rejected:
+ * the simulated channels have no protocol phase raw frames could be matched against,
+ * and no event loop held packets could be released on.
+ * For the same reason, and because simulated players cannot be kicked, replaying with a rate limiter on the pipeline of the harness is rejected.<br/>
+ * The harness is part of the test fixtures and not shipped with the library.
+ * <pre>{@code
+ * PacketReplayHarness harness = new PacketReplayHarness();
+ * harness.attach(registry, EventPriority.NORMAL);
+ * harness.addPlayers(200);
+ * PacketReplayHarness.Report report = harness.replay(PacketDirection.SERVERBOUND, packets, 100);
+ * harness.close();
+ * }</pre>
+ */
+public final class PacketReplayHarness implements AutoCloseable {
+    private final PacketPipeline pipeline;
+    private final List<SimulatedConnection> connections;
+    private final Map<PacketListenerRegistry, PacketListenerRegistry> registries;
+    private final Map<RegisteredPacketListener<?>, LatencyHistogram> listenerTimes;
+
+    /**
+     * Creates a PacketReplayHarness.
+     */
+    public PacketReplayHarness() {
+        this.pipeline = new PacketPipeline();
+        this.pipeline.getMetrics().setEnabled(true);
+        this.connections = new ArrayList<>();
+        this.registries = new HashMap<>();
+        this.listenerTimes = new LinkedHashMap<>();
+    }
+
+    // SETUP
+
+    /**
+     * Attaches a listener registry to the pipeline of the harness.
+     * The listeners of the registry are copied into a registry of the harness that measures the time of every listener call.
+     * @param registry registry
+     * @param priority priority
+     * @throws IllegalArgumentException if the registry has raw frame listeners or async listeners
+     */
+    public void attach(PacketListenerRegistry registry, EventPriority priority) {
+        if (registry == null || priority == null) throw new IllegalArgumentException("Arguments cannot be null");
+        if (this.registries.containsKey(registry)) throw new IllegalArgumentException("Registry is already attached");
+        if (registry.hasRawFrameListeners()) throw new IllegalArgumentException("Raw frame listeners are not supported by the replay harness");
+
+        List<RegisteredPacketListener<?>> listeners = registry.getRegisteredListeners();
+
+        for (RegisteredPacketListener<?> listener : listeners) {
+            if (listener.isAsync()) throw new IllegalArgumentException("Async listeners are not supported by the replay harness");
+        }
+
+        PacketListenerRegistry timed = new PacketListenerRegistry(registry.getName(), Logger.getLogger(registry.getName()));
+
+        for (RegisteredPacketListener<?> listener : listeners) {
+            this.registerTimed(timed, listener);
+        }
+
+        this.registries.put(registry, timed);
+        this.pipeline.attach(timed, priority);
+    }
+
+    /**
+     * Registers a copy of the listener that records the time of every call.
+     * @param registry registry of the harness
+     * @param listener listener of the attached registry
+     * @param <P> packet type
+     */
+    private <P extends Packet<?>> void registerTimed(PacketListenerRegistry registry, RegisteredPacketListener<P> listener) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        PacketListener<P> delegate = listener.getListener();
+
+        PacketListener<P> timed = (event, packet) -> {
+            long start = System.nanoTime();
+
+            try {
+                delegate.onPacket(event, packet);
+            } finally {
+                histogram.record(System.nanoTime() - start);
+            }
+
+        };
+
+        if (listener.getFilter() != null) {
+            registry.register(listener.getFilter(), listener.getPriority(), timed);
+        } else {
+            registry.register(listener.getDirection(), listener.getPacketClass(), listener.getPriority(), timed);
+        }
+
+        this.listenerTimes.put(listener, histogram);
+    }
+
+    /**
+     * Detaches a listener registry from the pipeline of the harness.
+     * @param registry registry
+     */
+    public void detach(PacketListenerRegistry registry) {
+        PacketListenerRegistry timed = this.registries.remove(registry);
+        if (timed == null) return;
+
+        this.pipeline.detach(timed);
+        this.listenerTimes.keySet().removeIf(listener -> listener.getRegistry() == registry);
+    }
+
+    /**
+     * Adds the specified amount of simulated players, each with its own channel.
+     * @param amount amount
+     * @return the created players
+     */
+    public List<Player> addPlayers(int amount) {
+        List<Player> players = new ArrayList<>();
+
+        for (int i = 0; i < amount; i++) {
+            Player player = createPlayer("Simulated" + this.connections.size(), UUID.randomUUID());
+            this.addPlayer(player);
+            players.add(player);
+        }
+
+        return List.copyOf(players);
+    }
+
+    /**
+     * Adds a channel for the specified player.
+     * The player can be a real player or one created by {@link #createPlayer(String, UUID)}.
+     * @param player player
+     */
+    public void addPlayer(Player player) {
+        SimulatedConnection connection = new SimulatedConnection(player, this.pipeline);
+        this.connections.add(connection);
+    }
+
+    /**
+     * Returns the pipeline of the harness.
+     * Can be used to access the metrics or to start captures.
+     * Rate limiting is not supported, see {@link #replay(PacketDirection, List, int)}.
+     * @return pipeline
+     */
+    public PacketPipeline getPipeline() {
+        return this.pipeline;
+    }
+
+    /**
+     * Returns the simulated players.
+     * @return list of players
+     */
+    public List<Player> getPlayers() {
+        List<Player> players = new ArrayList<>();
+
+        for (SimulatedConnection connection : this.connections) {
+            players.add(connection.player);
+        }
+
+        return List.copyOf(players);
+    }
+
+    // REPLAY
+
+    /**
+     * Sends every packet of the list to every player's channel, repeated for the specified number of rounds.
+     * @param direction direction the packets travel in
+     * @param packets packets
+     * @param rounds rounds
+     * @return report
+     * @throws IllegalStateException if a rate limiter is set on the pipeline of the harness
+     */
+    public Report replay(PacketDirection direction, List<? extends Packet<?>> packets, int rounds) {
+        if (this.pipeline.getRateLimiter() != null) throw new IllegalStateException("Rate limiting is not supported by the replay harness");
+        this.pipeline.getMetrics().reset();
+        this.resetCounters();
+
+        long start = System.nanoTime();
+
+        for (int round = 0; round < rounds; round++) {
+            for (Packet<?> packet : packets) {
+                for (SimulatedConnection connection : this.connections) {
+                    connection.send(direction, packet);
+                }
+            }
+        }
+
+        return this.createReport(System.nanoTime() - start);
+    }
+
+    /**
+     * Replays the records of a capture session through every player's channel.
+     * The records are decoded by the specified decoder. Records the decoder returns null for are passed as raw frames.
+     * The timing of the capture is ignored, everything is replayed at full speed.
+     * @param session capture session
+     * @param decoder decoder from a record to a packet (e.g. using the protocol codecs of the server), can be null to only replay raw frames
+     * @return report
+     * @throws IllegalStateException if a rate limiter is set on the pipeline of the harness
+     */
+    public Report replay(PacketCaptureReader.Session session, Function<PacketCaptureReader.Record, Packet<?>> decoder) {
+        if (this.pipeline.getRateLimiter() != null) throw new IllegalStateException("Rate limiting is not supported by the replay harness");
+        this.pipeline.getMetrics().reset();
+        this.resetCounters();
+
+        long start = System.nanoTime();
+
+        for (PacketCaptureReader.Record record : session.records()) {
+            Packet<?> packet = decoder != null ? decoder.apply(record) : null;
+
+            for (SimulatedConnection connection : this.connections) {
+
+                if (packet != null) {
+                    connection.send(record.direction(), packet);
+                } else {
+                    connection.sendFrame(record.direction(), record.frame());
+                }
+
+            }
+
+        }
+
+        return this.createReport(System.nanoTime() - start);
+    }
+
+    private void resetCounters() {
+
+        for (SimulatedConnection connection : this.connections) {
+            connection.sent = 0;
+            connection.forwarded = 0;
+        }
+
+        this.listenerTimes.values().forEach(LatencyHistogram::reset);
+    }
+
+    private Report createReport(long nanos) {
+        long sent = 0;
+        long forwarded = 0;
+
+        for (SimulatedConnection connection : this.connections) {
+            sent += connection.sent;
+            forwarded += connection.forwarded;
+        }
+
+        return new Report(this.connections.size(), sent, forwarded, nanos, Collections.unmodifiableMap(new LinkedHashMap<>(this.listenerTimes)));
+    }
+
+    /**
+     * Closes all channels of the harness.
+     */
+    @Override
+    public void close() {
+
+        for (SimulatedConnection connection : this.connections) {
+            connection.channel.finishAndReleaseAll();
+        }
+
+        this.connections.clear();
+    }
+
+    // PLAYERS
+
+    /**
+     * Creates a stand-in for a bukkit player.
+     * It returns the name and uuid, is always online and returns default values for all other methods.
+     * @param name name
+     * @param uuid uuid
+     * @return player
+     */
+    public static Player createPlayer(String name, UUID uuid) {
+        return (Player) Proxy.newProxyInstance(Player.class.getClassLoader(), new Class<?>[]{Player.class}, (proxy, method, args) -> switch (method.getName()) {
+            case "getName", "getDisplayName", "getPlayerListName" -> name;
+            case "getUniqueId" -> uuid;
+            case "isOnline", "isValid", "isConnected" -> true;
+            case "equals" -> args != null && args.length == 1 && proxy == args[0];
+            case "hashCode" -> uuid.hashCode();
+            case "toString" -> "SimulatedPlayer{name=" + name + "}";
+            default -> defaultValue(method.getReturnType());
+        });
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) return null;
+        if (type == boolean.class) return false;
+        if (type == char.class) return (char) 0;
+        if (type == byte.class) return (byte) 0;
+        if (type == short.class) return (short) 0;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        if (type == float.class) return 0F;
+        return 0D;
+    }
+
+    // CHANNEL
+
+    /**
+     * Embedded channel of one simulated player.
+     * Pipeline: splitter (frame source) -> prepender (outbound sink) -> {@link PacketPipeline#HANDLER_NAME} -> packet_handler (inbound sink)
+     */
+    private static final class SimulatedConnection {
+        private final Player player;
+        private final EmbeddedChannel channel;
+        private final ChannelHandlerContext packetHandlerContext;
+        private long sent;
+        private long forwarded;
+
+        private SimulatedConnection(Player player, PacketPipeline pipeline) {
+            this.player = player;
+            this.channel = new EmbeddedChannel();
+            this.sent = 0;
+            this.forwarded = 0;
+
+            PacketChannelHandler handler = new PacketChannelHandler(pipeline, null, player);
+
+            this.channel.pipeline().addLast("splitter", new ChannelInboundHandlerAdapter());
+            this.channel.pipeline().addLast("prepender", new ChannelOutboundHandlerAdapter() {
+
+                @Override
+                public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) {
+                    forwarded++;
+                    ReferenceCountUtil.release(msg);
+                    promise.trySuccess();
+                }
+
+            });
+            this.channel.pipeline().addLast(PacketPipeline.HANDLER_NAME, handler);
+            this.channel.pipeline().addLast("packet_handler", new ChannelInboundHandlerAdapter() {
+
+                @Override
+                public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                    forwarded++;
+                    ReferenceCountUtil.release(msg);
+                }
+
+            });
+
+            PacketFrameHandler.inject(this.channel.pipeline(), handler);
+            this.packetHandlerContext = this.channel.pipeline().context("packet_handler");
+        }
+
+        private void send(PacketDirection direction, Packet<?> packet) {
+            this.sent++;
+
+            if (direction == PacketDirection.SERVERBOUND) {
+                this.channel.pipeline().fireChannelRead(packet);
+            } else {
+                this.packetHandlerContext.write(packet, this.channel.voidPromise());
+            }
+
+        }
+
+        private void sendFrame(PacketDirection direction, byte[] frame) {
+            this.sent++;
+            ByteBuf buf = Unpooled.wrappedBuffer(frame);
+
+            if (direction == PacketDirection.SERVERBOUND) {
+                this.channel.pipeline().fireChannelRead(buf);
+            } else {
+                this.packetHandlerContext.write(buf, this.channel.voidPromise());
+            }
+
+        }
+
+    }
+
+    // REPORT
+
+    /**
+     * Result of a replay.
+     * @param players number of simulated players
+     * @param sent packets sent into the channels
+     * @param forwarded packets that reached the end of the channels (not cancelled)
+     * @param nanos duration of the replay
+     * @param listenerTimes time per call of every listener of the attached registries, in the order they have been attached and registered
+     */
+    public record Report(int players, long sent, long forwarded, long nanos, Map<RegisteredPacketListener<?>, LatencyHistogram> listenerTimes) {
+
+        /**
+         * Returns the throughput of the replay.
+         * @return packets per second
+         */
+        public double packetsPerSecond() {
+            return this.nanos > 0 ? this.sent * 1_000_000_000.0 / this.nanos : 0;
+        }
+
+        /**
+         * Returns the number of cancelled packets.
+         * @return cancelled packets
+         */
+        public long cancelled() {
+            return this.sent - this.forwarded;
+        }
+
+    }
+
+}